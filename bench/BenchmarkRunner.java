@@ -0,0 +1,242 @@
+/*[BenchmarkRunner.java]
+ * Small harness that times benchmarks in warmup and measurement iterations and exports the results as JSON
+ * @version 1.0
+ */
+
+//imports
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * BenchmarkRunner
+ * runs each benchmark for a number of timed iterations on the current thread and reports the average
+ * time and bytes allocated per operation; the JSON written has the same shape as JMH's -rf json output
+ * (benchmark, mode, params, primaryMetric with rawData, secondaryMetrics) so the same tools can compare runs
+ *
+ * settings (--name=value):
+ *   warmup      - warmup iterations per benchmark (default 3)
+ *   iterations  - measurement iterations per benchmark (default 5)
+ *   time        - length of one iteration in ms (default 500)
+ *   filter      - only run benchmarks whose name contains this text
+ *   json        - file the results are written to
+ */
+class BenchmarkRunner {
+
+  /**
+   * Benchmark
+   * the operation being measured
+   */
+  interface Benchmark {
+
+    /**
+     * runs the operation once
+     * @return any value computed, so the jit cannot throw the work away
+     */
+    long run();
+  }
+
+  /**
+   * Result
+   * measurements of one benchmark with one set of parameters
+   */
+  static class Result {
+    String name;
+    String params; //"name=value" pairs separated by ','; empty if none
+    double[] nanosPerOp;
+    double bytesPerOp;
+
+    /** mean
+      * @return average time per operation over the measurement iterations in ns
+      */
+    double mean() {
+      double sum = 0;
+      for (double n:nanosPerOp) {
+        sum += n;
+      }
+      return sum/nanosPerOp.length;
+    }
+
+    /** error
+      * @return half-width of a rough 99.9% confidence interval of the mean in ns (0 with one iteration)
+      */
+    double error() {
+      if (nanosPerOp.length < 2) {
+        return 0;
+      }
+      double mean = mean();
+      double squares = 0;
+      for (double n:nanosPerOp) {
+        squares += (n-mean)*(n-mean);
+      }
+      return 3.29*Math.sqrt(squares/(nanosPerOp.length-1)/nanosPerOp.length);
+    }
+  }
+
+  /**
+   * settings from the command line
+   */
+  private ChatServer.ServerOptions options;
+
+  /**
+   * results of every benchmark run so far
+   */
+  private ArrayList<Result> results = new ArrayList<>();
+
+  /**
+   * keeps the jit from throwing the benchmarks away
+   */
+  private long blackhole;
+
+  /** BenchmarkRunner
+    * Constructor
+    * @param args - settings from the command line
+    */
+  BenchmarkRunner(String[] args) {
+    this.options = new ChatServer.ServerOptions(args);
+  }
+
+  /** run
+    * measures a benchmark unless the filter leaves it out, and prints the result
+    * @param name - name of the benchmark
+    * @param params - parameters of this run as "name=value,..." (empty if none)
+    * @param benchmark - operation to measure
+    */
+  public void run(String name, String params, Benchmark benchmark) {
+    String label = params.isEmpty() ? name : name+"("+params+")";
+
+    if (!label.contains(options.get("filter", ""))) {
+      return;
+    }
+
+    long iterationNanos = options.getInt("time", 500)*1000000L;
+    long ops = calibrate(benchmark, iterationNanos);
+
+    for (int i = 0; i < options.getInt("warmup", 3); i++) {
+      time(benchmark, ops);
+    }
+
+    Result result = new Result();
+    result.name = name;
+    result.params = params;
+    result.nanosPerOp = new double[options.getInt("iterations", 5)];
+    long bytes = 0;
+
+    for (int i = 0; i < result.nanosPerOp.length; i++) {
+      long before = allocatedBytes();
+      result.nanosPerOp[i] = (double)time(benchmark, ops)/ops;
+      bytes += allocatedBytes()-before;
+    }
+    result.bytesPerOp = (double)bytes/(ops*result.nanosPerOp.length);
+    results.add(result);
+
+    System.out.println(String.format(Locale.ROOT, "%-45s %14.1f +- %8.1f ns/op %12.1f B/op",
+                                     label, result.mean(), result.error(), result.bytesPerOp));
+  }
+
+  /** calibrate
+    * @param benchmark - operation to measure
+    * @param iterationNanos - how long one iteration should take in ns
+    * @return number of operations that take about that long
+    */
+  private long calibrate(Benchmark benchmark, long iterationNanos) {
+    long ops = 1;
+    long nanos = time(benchmark, ops);
+
+    while (nanos < iterationNanos/10) {
+      ops *= 2;
+      nanos = time(benchmark, ops);
+    }
+    return Math.max(1, (long)((double)ops*iterationNanos/Math.max(nanos, 1)));
+  }
+
+  /** time
+    * @param benchmark - operation to measure
+    * @param ops - number of times to run it
+    * @return time taken in ns
+    */
+  private long time(Benchmark benchmark, long ops) {
+    long start = System.nanoTime();
+    for (long i = 0; i < ops; i++) {
+      blackhole += benchmark.run();
+    }
+    return System.nanoTime()-start;
+  }
+
+  /** finish
+    * writes the results to the --json file, if one was given
+    */
+  public void finish() throws IOException {
+    String file = options.get("json", null);
+
+    if (file == null) {
+      return;
+    }
+
+    try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+      out.println("[");
+      for (int i = 0; i < results.size(); i++) {
+        out.print(toJson(results.get(i)));
+        out.println((i < results.size()-1) ? "," : "");
+      }
+      out.println("]");
+    }
+    System.out.println("results written to "+file+" (blackhole "+(blackhole & 1)+")");
+  }
+
+  /** toJson
+    * @param result - result to write
+    * @return the result as a JSON object in JMH's format
+    */
+  private String toJson(Result result) {
+    StringBuilder json = new StringBuilder();
+    json.append("  {\n");
+    json.append("    \"benchmark\" : \"").append(result.name).append("\",\n");
+    json.append("    \"mode\" : \"avgt\",\n");
+    json.append("    \"threads\" : 1,\n");
+    json.append("    \"warmupIterations\" : ").append(options.getInt("warmup", 3)).append(",\n");
+    json.append("    \"measurementIterations\" : ").append(result.nanosPerOp.length).append(",\n");
+
+    if (!result.params.isEmpty()) {
+      json.append("    \"params\" : {");
+      String[] params = result.params.split(",");
+      for (int i = 0; i < params.length; i++) {
+        String[] param = params[i].split("=", 2);
+        json.append((i > 0) ? ", " : " ").append("\"").append(param[0]).append("\" : \"").append(param[1]).append("\"");
+      }
+      json.append(" },\n");
+    }
+
+    json.append("    \"primaryMetric\" : {\n");
+    json.append("      \"score\" : ").append(number(result.mean())).append(",\n");
+    json.append("      \"scoreError\" : ").append(number(result.error())).append(",\n");
+    json.append("      \"scoreUnit\" : \"ns/op\",\n");
+    json.append("      \"rawData\" : [ [");
+    for (int i = 0; i < result.nanosPerOp.length; i++) {
+      json.append((i > 0) ? ", " : " ").append(number(result.nanosPerOp[i]));
+    }
+    json.append(" ] ]\n");
+    json.append("    },\n");
+    json.append("    \"secondaryMetrics\" : {\n");
+    json.append("      \"gc.alloc.rate.norm\" : { \"score\" : ").append(number(result.bytesPerOp)).append(", \"scoreUnit\" : \"B/op\" }\n");
+    json.append("    }\n");
+    json.append("  }");
+    return json.toString();
+  }
+
+  /** number
+    * @param value - value to write
+    * @return the value as a JSON number
+    */
+  private static String number(double value) {
+    return String.format(Locale.ROOT, "%.3f", value);
+  }
+
+  /** allocatedBytes
+    * @return bytes allocated so far by this thread
+    */
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -0,0 +1,215 @@
+/*[LoadGenerator.java]
+ * Drives many headless chat sessions against a server and reports delivery latency and throughput
+ * run with: javac -d out src/*.java bench/*.java && java -cp out LoadGenerator [--sessions=1000] [--rate=2000] ...
+ * @version 1.0
+ */
+
+//imports
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LoadGenerator
+ * logs in N sessions, then sends a mix of broadcasts, whispers and status changes at a target rate;
+ * each message carries the time it was scheduled to be sent, so a receiver can work out how long delivery
+ * took (measured from the schedule rather than the actual send, so a sender that falls behind is not hidden)
+ *
+ * settings (--name=value):
+ *   host, port        - server to connect to (default 127.0.0.1:5000)
+ *   sessions          - number of sessions (default 100)
+ *   rate              - messages sent per second by all sessions together (default 1000)
+ *   duration          - seconds to send for (default 30)
+ *   warmup            - seconds at the start whose latencies are not counted (default 5)
+ *   broadcast, whisper, status - weights of each kind of message (default 80, 15, 5)
+ *   size              - length of each message in characters (default 64)
+ *
+ * the server limits how often each session may send (--broadcast-rate=20, --whisper-rate=20, --status-rate=5 a second
+ * by default); start it with higher limits, or 0 for none, when the rate per session is higher than that
+ */
+class LoadGenerator implements ChatSession.Listener {
+
+  /**
+   * marks messages sent by the load generator; followed by the scheduled send time in ns
+   */
+  private static final String MARK = "lg";
+
+  /**
+   * statuses sent by status changes
+   */
+  private static final String[] STATUSES = {"Online", "Idle", "Do Not Disturb"};
+
+  /**
+   * time from scheduled send to delivery in ns, for every delivery after the warmup
+   */
+  private LatencyHistogram latencies = new LatencyHistogram();
+
+  /**
+   * messages delivered to sessions (every recipient counts)
+   */
+  private AtomicLong delivered = new AtomicLong();
+
+  /**
+   * sessions the server closed before the end of the run
+   */
+  private AtomicLong dropped = new AtomicLong();
+
+  /**
+   * time after which latencies are counted, in ns
+   */
+  private volatile long measureFrom = Long.MAX_VALUE;
+
+  /**
+   * keeps track of whether the run is over, so closing sessions are not counted as dropped
+   */
+  private volatile boolean finished = false;
+
+  /** Main
+    * @param args parameters from command line (see above)
+    */
+  public static void main(String[] args) throws Exception {
+    new LoadGenerator().go(new ChatServer.ServerOptions(args));
+  }
+
+  /** go
+    * runs the load and prints the report
+    * @param options - settings from the command line
+    */
+  private void go(ChatServer.ServerOptions options) throws Exception {
+    String host = options.get("host", "127.0.0.1");
+    int port = options.getInt("port", 5000);
+    int numSessions = options.getInt("sessions", 100);
+    int rate = options.getInt("rate", 1000);
+    int duration = options.getInt("duration", 30);
+    int warmup = options.getInt("warmup", 5);
+    int broadcastWeight = options.getInt("broadcast", 80);
+    int whisperWeight = options.getInt("whisper", 15);
+    int statusWeight = options.getInt("status", 5);
+    int size = options.getInt("size", 64);
+
+    Executor readers = newReaderExecutor();
+    ArrayList<ChatSession> sessions = new ArrayList<>();
+    String run = Long.toString(System.currentTimeMillis() % 100000, 36); //keeps names unique between runs
+
+    System.out.println("logging in "+numSessions+" sessions to "+host+":"+port);
+    for (int i = 0; i < numSessions; i++) {
+      ChatSession session = new ChatSession(host, port, this);
+      session.login("lg"+run+"-"+i, readers);
+      sessions.add(session);
+    }
+    Thread.sleep(1000); //let the join notices settle
+
+    long[] sent = new long[3]; //broadcasts, whispers, status changes
+    long interval = 1000000000L/rate;
+    long start = System.nanoTime();
+    long end = start+duration*1000000000L;
+    measureFrom = start+warmup*1000000000L;
+    String padding = "x".repeat(size);
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+
+    System.out.println("sending "+rate+" messages/s for "+duration+" s ("+warmup+" s warmup)");
+    for (long i = 0; ; i++) {
+      long scheduled = start+i*interval;
+      if (scheduled >= end) {
+        break;
+      }
+      LockSupport.parkNanos(scheduled-System.nanoTime()); //returns at once if the sender is behind
+
+      ChatSession from = sessions.get(random.nextInt(sessions.size()));
+      String message = MARK+scheduled+" "+padding;
+      message = message.substring(0, Math.max(size, message.indexOf(' ')));
+      int pick = random.nextInt(broadcastWeight+whisperWeight+statusWeight);
+
+      if (pick < broadcastWeight) {
+        from.broadcast(message);
+        sent[0]++;
+      } else if (pick < broadcastWeight+whisperWeight) {
+        ChatSession to = sessions.get(random.nextInt(sessions.size()));
+        if (to == from && sessions.size() > 1) { //a whisper to yourself would be delivered twice
+          to = sessions.get((sessions.indexOf(from)+1) % sessions.size());
+        }
+        from.whisper(to.getUser(), message);
+        sent[1]++;
+      } else {
+        from.setStatus(STATUSES[random.nextInt(STATUSES.length)]);
+        sent[2]++;
+      }
+    }
+    long sendEnd = System.nanoTime();
+    Thread.sleep(2000); //let the last messages arrive
+    finished = true;
+
+    long measuredNanos = sendEnd-measureFrom;
+    System.out.println("sent: "+sent[0]+" broadcasts, "+sent[1]+" whispers, "+sent[2]+" status changes");
+    System.out.println(String.format(Locale.ROOT, "send rate: %.0f messages/s", (sent[0]+sent[1]+sent[2])*1e9/(sendEnd-start)));
+    System.out.println(String.format(Locale.ROOT, "delivered: %d messages (%.0f/s after warmup)", delivered.get(), latencies.getCount()*1e9/Math.max(measuredNanos, 1)));
+    System.out.println(String.format(Locale.ROOT, "latency ms: p50 %.3f  p99 %.3f  p999 %.3f  max %.3f  mean %.3f",
+                                     latencies.percentile(50)/1e6, latencies.percentile(99)/1e6, latencies.percentile(99.9)/1e6,
+                                     latencies.getMax()/1e6, latencies.getMean()/1e6));
+    System.out.println("sessions dropped by the server: "+dropped.get());
+
+    for (ChatSession session:sessions) {
+      session.quit();
+    }
+    Thread.sleep(500);
+    for (ChatSession session:sessions) {
+      session.close();
+    }
+    System.exit(0); //the reader threads may still be waiting on the last closes
+  }
+
+  /** received
+    * counts messages from the load generator and records how long they took to arrive
+    * @param session - session that received the line
+    * @param line - line from the server
+    */
+  public void received(ChatSession session, String line) {
+    long now = System.nanoTime();
+    int mark = line.indexOf(": "+MARK);
+
+    if (mark == -1) {
+      return; //user lists, presence and join notices
+    }
+
+    if (line.startsWith("[Whisper To ") && !line.startsWith("[Whisper To "+session.getUser()+"]")) {
+      return; //the server echoes whispers back to the sender; only the recipient counts
+    }
+
+    int from = mark+2+MARK.length();
+    int to = from;
+    while (to < line.length() && Character.isDigit(line.charAt(to))) {
+      to++;
+    }
+
+    long scheduled = Long.parseLong(line.substring(from, to));
+    delivered.incrementAndGet();
+    if (scheduled >= measureFrom) {
+      latencies.record(now-scheduled);
+    }
+  }
+
+  /** closed
+    * @param session - session the server closed
+    */
+  public void closed(ChatSession session) {
+    if (!finished) {
+      dropped.incrementAndGet();
+    }
+  }
+
+  /** newReaderExecutor
+    * @return executor for session readers: a virtual thread each on Java 21+, otherwise a platform thread each
+    */
+  private static Executor newReaderExecutor() {
+    try { //looked up by reflection so this still compiles and runs on older versions of java
+      return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool();
+    }
+  }
+}
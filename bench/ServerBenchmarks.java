@@ -0,0 +1,211 @@
+/*[ServerBenchmarks.java]
+ * Benchmarks of the server's hot paths: message parsing, user lists, broadcasts and username checks
+ * run with: javac -d out src/*.java bench/*.java && java -cp out ServerBenchmarks [--json=results.json] [--filter=name]
+ * (or mvn -Pbench compile exec:java -Dexec.args="--json=results.json")
+ * @version 1.0
+ */
+
+//imports
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+
+/**
+ * ServerBenchmarks
+ * fills a server with in-memory clients (no sockets) and measures the paths every message goes through, next to
+ * what they replaced (the regex split of a line, a PrintWriter per client) where there was one;
+ * see BenchmarkRunner for the settings and the JSON export
+ */
+public class ServerBenchmarks {
+
+  /**
+   * numbers of logged in users the server paths are measured with
+   */
+  private static final int[] USERS = {10, 1000, 10000};
+
+  /**
+   * number of clients a broadcast is written to when comparing the ways of writing it
+   */
+  private static final int RECIPIENTS = 500;
+
+  /**
+   * typical lines from clients: broadcast, whisper, status
+   */
+  private static final String[] LINES = {
+    "<*><hey everyone, is the build green again?>",
+    "<alice><can you look at my change when you get a minute>",
+    "<?><Do Not Disturb>"
+  };
+
+  /** Main
+    * @param args parameters from command line (see BenchmarkRunner)
+    */
+  public static void main(String[] args) throws Exception {
+    BenchmarkRunner runner = new BenchmarkRunner(args);
+
+    ChatServer.ClientMessage parser = new ChatServer.ClientMessage();
+    int[] next = {0};
+    runner.run("ClientMessage.parse", "", () -> {
+      String line = LINES[next[0]++ % LINES.length];
+      return (parser.parse(line) && parser.isRecipient("*")) ? 1 : parser.getMessage().length();
+    });
+    runner.run("ClientMessage.regexSplit", "", () -> {
+      String[] messages = regexSplit(LINES[next[0]++ % LINES.length]);
+      return messages[0].length()+messages[1].length();
+    });
+
+    String shortMsg = "*someone: a fairly ordinary chat message that everyone in the room gets";
+    for (String msg:new String[] {shortMsg, shortMsg.repeat(16)}) { //the second about 1 KB
+      String params = "recipients="+RECIPIENTS+",length="+msg.length();
+
+      PrintWriter[] writers = new PrintWriter[RECIPIENTS];
+      for (int i = 0; i < RECIPIENTS; i++) {
+        writers[i] = new PrintWriter(new NullOutputStream());
+      }
+      runner.run("broadcast.printWriter", params, () -> {
+        for (PrintWriter writer:writers) {
+          writer.println(msg);
+          writer.flush();
+        }
+        return writers.length;
+      });
+
+      @SuppressWarnings({"unchecked", "rawtypes"})
+      OutboundQueue<ByteBuffer>[] queues = new OutboundQueue[RECIPIENTS];
+      for (int i = 0; i < RECIPIENTS; i++) {
+        queues[i] = new OutboundQueue<>(256, OutboundQueue.Policy.DROP_OLDEST);
+      }
+      NullChannel sink = new NullChannel();
+      runner.run("broadcast.sharedBuffer", params, () -> {
+        ByteBuffer frame = ChatServer.encode(msg); //encoded once and shared
+        for (OutboundQueue<ByteBuffer> queue:queues) {
+          queue.offer(frame, false);
+          sink.write(queue.poll().duplicate()); //what the writer does before its gathering write
+        }
+        return sink.written;
+      });
+    }
+
+    for (int users:USERS) {
+      ChatServer server = new ChatServer();
+      ArrayList<ChatServer.ConnectionHandler> clients = fill(server, users);
+      ChatServer.ConnectionHandler first = clients.get(0);
+
+      runner.run("rebuildUserList", "users="+users, () -> {
+        server.rebuildUserList();
+        return server.getUserList().length();
+      });
+
+      ChatServer.ServerMessage msg = new ChatServer.ServerMessage(WireProtocol.BROADCAST, "*someone: a fairly ordinary chat message that everyone in the room gets");
+      runner.run("sendToAll", "users="+users, () -> {
+        server.sendToAll(msg);
+        return 1;
+      });
+
+      String taken = clients.get(users/2).getUser();
+      runner.run("duplicateUsername.linearScan", "users="+users, () -> linearScan(clients, taken).length());
+      runner.run("duplicateUsername.reserveUser", "users="+users, () -> {
+        String name = server.reserveUser(taken, first);
+        server.releaseUser(name, first);
+        return name.length();
+      });
+    }
+
+    runner.finish();
+  }
+
+  /** fill
+    * logs in the specified number of in-memory clients; writers run inline so a broadcast is fully written when sendToAll returns
+    * @param server - server to fill
+    * @param users - number of clients
+    * @return the clients
+    */
+  private static ArrayList<ChatServer.ConnectionHandler> fill(ChatServer server, int users) {
+    server.writers = Runnable::run;
+    ArrayList<ChatServer.ConnectionHandler> clients = new ArrayList<>();
+
+    for (int i = 0; i < users; i++) {
+      clients.add(server.addClient(new NullChannel(), "user"+i));
+    }
+    return clients;
+  }
+
+  /** regexSplit
+    * the ClientMessage constructor before ClientMessage.parse
+    * @param msg - line from the client
+    * @return recipient and message
+    */
+  private static String[] regexSplit(String msg) {
+    return msg.trim().replaceFirst("^<","").replaceFirst(">$","").split("\\s*>*<\\s*");
+  }
+
+  /** linearScan
+    * the duplicate username check login used before usernames were kept in a map
+    * @param clients - logged in clients
+    * @param name - username asked for
+    * @return the username the client would get
+    */
+  private static String linearScan(ArrayList<ChatServer.ConnectionHandler> clients, String name) {
+    int dupNum = 0;
+
+    for (ChatServer.ConnectionHandler cl:clients) {
+      if (name.equals(cl.getUser())) {
+        dupNum++;
+      }
+    }
+    return (dupNum > 0) ? name+"("+dupNum+")" : name;
+  }
+
+  /**
+   * NullOutputStream
+   * stands in for a socket under a PrintWriter; throws the bytes away
+   */
+  static class NullOutputStream extends OutputStream {
+    long count = 0;
+
+    public void write(int b) {
+      count++;
+    }
+
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+
+  /**
+   * NullChannel
+   * channel that takes every byte written to it and throws it away
+   */
+  static class NullChannel implements GatheringByteChannel {
+    private boolean open = true;
+    long written = 0;
+
+    public int write(ByteBuffer src) {
+      int length = src.remaining();
+      src.position(src.limit());
+      written += length;
+      return length;
+    }
+
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+      long total = 0;
+      for (int i = offset; i < offset+length; i++) {
+        total += write(srcs[i]);
+      }
+      return total;
+    }
+
+    public long write(ByteBuffer[] srcs) {
+      return write(srcs, 0, srcs.length);
+    }
+
+    public boolean isOpen() {
+      return open;
+    }
+
+    public void close() {
+      open = false;
+    }
+  }
+}
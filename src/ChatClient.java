@@ -6,6 +6,14 @@ import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Inflater;
 
 /* [ChatClient.java]
  * An implementation of a basic chat client
@@ -14,32 +22,59 @@ import javax.imageio.ImageIO;
  * 2020/12/14
  */
 class ChatClient {
-  private JButton loginButton, sendButton, quitButton, logoButton;
+  private JButton loginButton, sendButton, quitButton, logoButton, leaveButton;
   private String[] statuses = {"Online", "Idle", "Do Not Disturb"};
-  private String[] users = {""};
-  private String[] whisperOptions; //Stores the options for direct messages or whispers
+  private static final String EVERYONE = "Everyone"; //First option of the room box, for messaging the main chat
   private BufferedImage logo;
   private ImageIcon icon;
-  private JComboBox<String> statusBox, whisperBox;
+  private JComboBox<String> statusBox, whisperBox, roomBox;
   private JTextField usernameField, typeField;
-  private JTextArea msgArea, listArea;  
+  private JList<String> userList; //Shows the other users and their statuses
+  private JTextField findField; //Type the start of a name to find that user in the user list
+  private JList<String> msgList; //Shows the chat; only the rows in view are laid out
+  private MessageHistory history; //Messages shown in msgList, the older ones on disk
+  private boolean scrolling = false; //Whether the chat is being scrolled by the program rather than the user
   private JScrollPane chatScroll, listScroll;
-  private JLabel usernameLabel, accountLabel, userListLabel, whisperLabel, errorLabel;
+  private JLabel usernameLabel, accountLabel, userListLabel, whisperLabel, roomLabel, errorLabel, findLabel;
   private JFrame loginWindow, chatWindow, userWindow;
   private JPanel loginPanel, logoPanel, southPanel, northPanel;
   private Socket mySocket; //Socket for connection
-  private BufferedReader input; //Reader for network stream
-  private PrintWriter output;  //PrintWriter for network output
+  private String host = "127.0.0.1"; //Address of the server
+  private int port = 5000; //Port of the server
+  private DataInputStream input; //Stream for network input, read byte by byte so the framing can switch mid-stream
+  private PrintWriter output;  //PrintWriter for network output (text framing)
+  private DataOutputStream frameOutput; //Stream for network output (binary framing)
+  private ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream(); //Reused for the bytes of each line read
+  private boolean binary = false; //Whether the server agreed to the binary framing
+  private boolean binaryPending = false; //Whether the client is waiting for the server to agree to the binary framing
+  private int binaryRequests = 0; //Number of times the binary framing was asked for, so an old timeout does not end a new wait
+  private ArrayList<String[]> heldMessages = new ArrayList<String[]>(); //Messages to the server held until it answers
+  private boolean deflate = !"false".equals(System.getProperty("deflate")); //Whether to accept compressed frames (-Ddeflate=false to not)
+  private Inflater inflater = new Inflater(); //Decompresses compressed frames from the server
+  private final Object sendLock = new Object(); //Keeps messages to the server in order while the framing changes
   private boolean running = true; //Thread status via boolean
+  private volatile long reconnectDelay = -1; //Time in ms the restarting server asked the client to wait before reconnecting, -1 if none
+  private static final long MAX_RECONNECT_MILLIS = 30000; //Longest wait between two tries to reconnect
   private String username;
+  private UserListModel users = new UserListModel(); //Other users and their statuses, sorted by name
+  private long presenceVersion = 0; //Version of the last presence change received from the server
+  private static final int FRAME_MILLIS = 16; //Least time between two updates of the windows (about 60 a second)
+  private ConcurrentLinkedQueue<Object> received = new ConcurrentLinkedQueue<Object>(); //Lines and frames read but not shown yet
+  private AtomicBoolean showScheduled = new AtomicBoolean(false); //Whether showReceived is already going to run
+  private javax.swing.Timer showTimer; //Runs showReceived once the current frame is over
+  private long lastShown = 0; //Time showReceived last updated the windows, in ms
+  private ArrayList<String> newMessages = new ArrayList<String>(); //Messages added to the chat by the current update
   
   /**
    * main
    * The main method that runs the program
-   * @param args, a String array of arguments from command line
+   * @param args, a String array of arguments from command line (optional server address and port, default 127.0.0.1 5000)
    */
   public static void main(String[] args) { 
-    new ChatClient().requestLogin();
+    ChatClient client = new ChatClient();
+    client.host = (args.length > 0) ? args[0] : "127.0.0.1";
+    client.port = (args.length > 1) ? Integer.parseInt(args[1]) : 5000;
+    client.requestLogin();
   }
   
   /**
@@ -48,7 +83,7 @@ class ChatClient {
    */
   public void requestLogin() {
     // call a method that connects to the server 
-    connect("127.0.0.1", 5000);
+    connect(host, port);
     
     try {
       logo = ImageIO.read(new File("logo.png"));
@@ -103,27 +138,53 @@ class ChatClient {
     chatWindow.setVisible(true);
     
     southPanel = new JPanel();
-    southPanel.setLayout(new GridLayout(2,0));
+    southPanel.setLayout(new GridLayout(4,2));
     
     sendButton = new JButton("SEND");
     sendButton.addActionListener(new SendListener()); //Will send message when clicked
     
     whisperLabel = new JLabel("Whisper To:");
     
-    whisperBox = new JComboBox<String>(users); //JComboBox for client to select desired user to directly message
-    whisperBox.setSelectedIndex(0);            //The first option is always empty and is for messaging the main chat
+    whisperBox = new JComboBox<String>(users.whisperChoices()); //JComboBox for client to select desired user to directly message
+                                                                //The first option is always empty and is for messaging the main chat
+    whisperBox.setPrototypeDisplayValue("XXXXXXXXXXXXXXXXXXXX"); //So the box is not sized by measuring every name
+    whisperBox.setKeySelectionManager(new WhisperKeys());
+    
+    roomLabel = new JLabel("Room (type a name to join):");
+    
+    roomBox = new JComboBox<String>(new String[] {EVERYONE}); //JComboBox for client to pick the room to send to
+    roomBox.setEditable(true);                                //A name that is not in the list yet joins that room
+    roomBox.addActionListener(new RoomListener());
+    
+    leaveButton = new JButton("LEAVE ROOM");
+    leaveButton.addActionListener(new LeaveListener()); //Will leave the selected room when clicked
     
     typeField = new JTextField(10);
     typeField.addActionListener(new SendListener()); //Will send message when enter key is pressed
     
-    msgArea = new JTextArea();
-    msgArea.setEditable(false);
-    chatScroll = new JScrollPane(msgArea);
+    try {
+      history = new MessageHistory(Integer.getInteger("scrollback", 2000),            //Messages kept in memory (-Dscrollback=n)
+                                   Integer.getInteger("historymb", 64) * 1024L * 1024L); //and MB of older ones on disk (-Dhistorymb=n)
+    } catch (IOException e) {
+      System.out.println("Failed to create the chat history file...");
+      e.printStackTrace();
+      System.exit(1);
+    }
+    msgList = new JList<String>(history);
+    msgList.setFixedCellHeight(msgList.getFontMetrics(msgList.getFont()).getHeight() + 2); //Fixed sizes so that only
+    msgList.setFixedCellWidth(1);                                                         //the rows in view are measured
+    msgList.setCellRenderer(new MessageRenderer());
+    chatScroll = new JScrollPane(msgList);
+    chatScroll.getVerticalScrollBar().addAdjustmentListener(new HistoryScroller());
     
     southPanel.add(typeField);
     southPanel.add(sendButton);
     southPanel.add(whisperLabel);
     southPanel.add(whisperBox);
+    southPanel.add(roomLabel);
+    southPanel.add(roomBox);
+    southPanel.add(new JLabel(""));
+    southPanel.add(leaveButton);
     
     chatWindow.add(BorderLayout.CENTER, chatScroll);
     chatWindow.add(BorderLayout.SOUTH, southPanel);
@@ -135,7 +196,7 @@ class ChatClient {
     userWindow.setVisible(true);
     
     northPanel = new JPanel();
-    northPanel.setLayout(new GridLayout(2, 2));
+    northPanel.setLayout(new GridLayout(3, 2));
     
     accountLabel = new JLabel(username);
     
@@ -148,20 +209,31 @@ class ChatClient {
     
     userListLabel = new JLabel("User List");
     
-    listArea = new JTextArea();
-    listArea.setEditable(false);
-    listScroll = new JScrollPane(listArea);
+    userList = new JList<String>(users);
+    userList.setCellRenderer(new UserRenderer());
+    userList.setPrototypeCellValue("XXXXXXXXXXXXXXXXXXXX"); //Fixed row size, so only the rows in view are measured
+    listScroll = new JScrollPane(userList);
+    
+    findLabel = new JLabel("Find User:");
+    
+    findField = new JTextField(10);
+    findField.getDocument().addDocumentListener(new FindListener());
     
     northPanel.add(accountLabel);
     northPanel.add(quitButton);
     northPanel.add(statusBox);
     northPanel.add(userListLabel);
+    northPanel.add(findLabel);
+    northPanel.add(findField);
     
     userWindow.add(BorderLayout.NORTH, northPanel);
     userWindow.add(BorderLayout.CENTER, listScroll);
     
     //After connecting loop and keep appending[.append()] to the JTextArea
     readMessagesFromServer();
+    
+    sendToServer("?", "presence " + presenceVersion); //Ask for join/leave/status changes instead of full lists
+    requestBinary();
   }
   
   /**
@@ -174,11 +246,11 @@ class ChatClient {
     System.out.println("Attempting to make a connection...");
     
     try {
-      mySocket = new Socket("127.0.0.1", 5000); //Attempt socket connection (local address)
+      mySocket = new Socket(ip, port); //Attempt socket connection (any node of a cluster will do)
                                                 //This will wait until a connection is made
-      InputStreamReader stream1= new InputStreamReader(mySocket.getInputStream()); //Stream for network input
-      input = new BufferedReader(stream1);     
+      input = new DataInputStream(new BufferedInputStream(mySocket.getInputStream())); //Stream for network input
       output = new PrintWriter(mySocket.getOutputStream()); //Assign PrintWriter to network stream
+      frameOutput = new DataOutputStream(new BufferedOutputStream(mySocket.getOutputStream()));
       
     } catch (IOException e) { //When connection error occurs
       System.out.println("Connection to server failed...");
@@ -191,61 +263,522 @@ class ChatClient {
   
   /**
    * readMessagesFromServer
-   * Starts a loop waiting for server input and then displays it on the text area
+   * Starts a thread that waits for input from the server and hands it to the Swing event thread, which shows
+   * whatever has arrived at most once a frame; a burst of messages is shown with one update of the windows
    */
   public void readMessagesFromServer() { 
-    new Thread() { //Create a new thread so that the main thread is not locked in a while loop
+    showTimer = new javax.swing.Timer(FRAME_MILLIS, event -> showReceived());
+    showTimer.setRepeats(false);
+    
+    Thread reader = new Thread() { //Create a new thread so that the main thread is not locked in a while loop
       public void run() {
-        while (running) { //Loop until client exits
-          try {
-            if (input.ready()) { //Check for incoming message
-              String msg;          
-              msg = input.readLine(); //Read the message
-              if (msg.indexOf(":") == -1) { //If the message does not contain a colon, it is not a user message
-                if (msg.equals("") || msg.indexOf("/") != -1) { //Check if the incoming message is the user list
-                  users = msg.split("/");
-                  listArea.setText("");
-                  for (int i = 0; i < users.length; i++) {
-                    listArea.append(users[i] + "\n");
-                  }
-                  whisperBox.removeAllItems();
-                  whisperBox.addItem("");
-                  for (int i = 0; i < users.length; i++) {
-                    whisperOptions = new String[users.length];
-                    if (users[i].indexOf("|") != -1) {
-                      whisperOptions[i] = users[i].substring(0, users[i].indexOf("|"));
-                      whisperBox.addItem(whisperOptions[i]);
-                    }
-                  }
-                } else { //If the incoming message is not a user list, it is a miscellaneous message for all to see
-                  msgArea.append(msg + "\n");
-                }
-              } else if (msg.charAt(0) == '*') { //If the message is tagged with an asterisk it is a user message for
-                                                 //every user to see
-                msgArea.append(msg.substring(1) + "\n");
-              } else {
-                msgArea.append(msg + "\n");
-              }
-            }
-          } catch (IOException e) { 
-            System.out.println("Failed to receive message from the server...");
-            e.printStackTrace();
+        do {
+          readUntilClosed();
+          try { //After leaving the main loop, all sockets must be closed
+            input.close();
+            output.close();
+            mySocket.close();
+          } catch (Exception e) { 
+            System.out.println("Failed to close socket...");
+          }
+        } while (reconnect()); //Only if the server said it was restarting
+        System.exit(0);
+      }
+    };
+    reader.setName("server-reader");
+    reader.start();
+  }
+  
+  /**
+   * readUntilClosed
+   * Reads from the server until the connection closes or the user quits (reader thread)
+   */
+  private void readUntilClosed() {
+    while (running) { //Loop until client exits
+      try {
+        if (binary) {
+          WireProtocol.Frame frame = WireProtocol.readFrame(input, WireProtocol.MAX_PAYLOAD, inflater); //Blocks until a frame arrives
+          if (frame == null) { //Server closed the connection
+            running = false;
+          } else if (frame.type == WireProtocol.CONTROL) { //Instructions from the server
+            readControl(frame.payload);
+          } else {
+            receive(frame);
+          }
+        } else {
+          String msg = WireProtocol.readLine(input, lineBuffer, Charset.defaultCharset(), WireProtocol.MAX_PAYLOAD);
+          if (msg == null) { //Server closed the connection
+            running = false;
+          } else if (msg.equals(WireProtocol.BINARY_ACK)) { //Server agreed; everything after this is frames
+            startBinary();
+          } else if (msg.startsWith(WireProtocol.RESTART)) {
+            readControl(msg);
+          } else {
+            receive(msg);
           }
         }
-        try { //After leaving the main loop, all sockets must be closed and program terminated
-          input.close();
-          output.close();
-          mySocket.close();
-          System.exit(0);
-        } catch (Exception e) { 
-          System.out.println("Failed to close socket...");
+      } catch (IOException e) { 
+        if (running && reconnectDelay < 0) { //Not just the restarting server closing the connection
+          System.out.println("Failed to receive message from the server...");
+          e.printStackTrace();
         }
+        running = false; //The connection is gone
       }
-    }.start();
+    }
+  }
+  
+  /**
+   * readControl
+   * Follows an instruction from the server; the only one is WireProtocol.RESTART (reader thread)
+   * @param msg, a String that is the instruction
+   */
+  private void readControl(String msg) {
+    if (msg.startsWith(WireProtocol.RESTART)) {
+      try {
+        reconnectDelay = Math.max(Long.parseLong(msg.substring(WireProtocol.RESTART.length())), 0);
+      } catch (NumberFormatException e) {
+        System.out.println("Bad restart delay from the server...");
+      }
+    }
+  }
+  
+  /**
+   * reconnect
+   * Waits as long as the restarting server asked, then connects again and logs back in with the same name, the same
+   * presence version and the same rooms; while the server is not back yet, tries again with the wait doubling up to
+   * MAX_RECONNECT_MILLIS (reader thread)
+   * @return true if the client is connected again, false if the server did not say it was restarting or the user quit
+   */
+  private boolean reconnect() {
+    long wait = reconnectDelay;
+    while (reconnectDelay >= 0) { //Quitting sets it back to -1
+      try {
+        Thread.sleep(wait);
+      } catch (InterruptedException e) {
+        return false;
+      }
+      
+      try {
+        Socket socket = new Socket(host, port);
+        synchronized (sendLock) {
+          mySocket = socket;
+          input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+          output = new PrintWriter(socket.getOutputStream());
+          frameOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+          binary = false; //The new connection starts with the text framing
+          binaryPending = false;
+          output.println(username); //Log in
+          output.flush();
+        }
+      } catch (IOException e) {
+        wait = Math.min(Math.max(wait * 2, 1000), MAX_RECONNECT_MILLIS);
+        continue;
+      }
+      
+      reconnectDelay = -1;
+      running = true;
+      receive("Reconnected to the server");
+      sendToServer("?", "presence " + presenceVersion);
+      requestBinary();
+      SwingUtilities.invokeLater(() -> { //Rooms are not kept by the server across a restart
+        for (int i = 0; i < roomBox.getItemCount(); i++) {
+          if (!EVERYONE.equals(roomBox.getItemAt(i))) {
+            sendToServer("?", "join " + roomBox.getItemAt(i));
+          }
+        }
+      });
+      return true;
+    }
+    return false;
+  }
+  
+  /**
+   * receive
+   * Queues a line or frame from the server to be shown, making sure the event thread will show it (reader thread)
+   * @param item, a String that is a line or a WireProtocol.Frame
+   */
+  private void receive(Object item) {
+    received.add(item);
+    if (showScheduled.compareAndSet(false, true)) { //Only the first item since the last update asks for one
+      SwingUtilities.invokeLater(this::showReceived);
+    }
+  }
+  
+  /**
+   * showReceived
+   * Shows everything queued by the reader thread with one update of each window, waiting until the current
+   * frame is over if the windows were just updated (event thread)
+   */
+  private void showReceived() {
+    long wait = lastShown + FRAME_MILLIS - System.currentTimeMillis();
+    if (wait > 0) { //Updated less than a frame ago; the messages arriving meanwhile are shown together
+      showTimer.setInitialDelay((int)wait);
+      showTimer.restart();
+      return;
+    }
+    lastShown = System.currentTimeMillis();
+    showScheduled.set(false); //Anything queued from here on asks for another update
+    
+    Object item;
+    while ((item = received.poll()) != null) {
+      if (item instanceof WireProtocol.Frame) {
+        showFrame((WireProtocol.Frame)item);
+      } else {
+        showLine((String)item);
+      }
+    }
+    
+    if (!newMessages.isEmpty()) {
+      showMessages(newMessages);
+      newMessages.clear();
+    }
+  }
+  
+  /**
+   * showMessages
+   * Adds messages to the chat, scrolling down to them unless the user has scrolled up to read older ones (event thread)
+   * @param messages, an ArrayList of the messages, oldest first
+   */
+  private void showMessages(ArrayList<String> messages) {
+    history.add(messages);
+    if (history.isFollowing()) {
+      SwingUtilities.invokeLater(() -> { //Once the list has been laid out again
+        scrolling = true;
+        msgList.ensureIndexIsVisible(history.getSize() - 1);
+        scrolling = false;
+      });
+    }
+  }
+  
+  /**
+   * scrollChatBy
+   * Moves the chat so the same messages stay in view after rows were added or removed above them (event thread)
+   * @param rows, an int that is the number of rows added (or removed, if negative) above the view
+   */
+  private void scrollChatBy(int rows) {
+    SwingUtilities.invokeLater(() -> { //Once the list has been laid out again
+      JScrollBar bar = chatScroll.getVerticalScrollBar();
+      scrolling = true;
+      bar.setValue(bar.getValue() + rows * msgList.getFixedCellHeight());
+      scrolling = false;
+    });
+  }
+  
+  /**
+   * showLine
+   * Displays a line from the server using the text framing, guessing what kind of message it is
+   * @param msg, a String that is the line from the server
+   */
+  private void showLine(String msg) {
+    if (msg.startsWith("|")) { //Presence changes start with a bar, which user names cannot contain
+      applyPresence(msg);
+    } else if (msg.indexOf(":") == -1) { //If the message does not contain a colon, it is not a user message
+      if (msg.equals("") || msg.indexOf("/") != -1) { //Check if the incoming message is the user list
+        readUserList(msg);
+      } else { //If the incoming message is not a user list, it is a miscellaneous message for all to see
+        checkRenamed(msg);
+        newMessages.add(msg);
+      }
+    } else if (msg.charAt(0) == '*') { //If the message is tagged with an asterisk it is a user message for
+                                       //every user to see
+      newMessages.add(msg.substring(1));
+    } else {
+      newMessages.add(msg);
+    }
+  }
+  
+  /**
+   * showFrame
+   * Displays a frame from the server using the binary framing; the frame type says what kind of message it is
+   * @param frame, the frame from the server
+   */
+  private void showFrame(WireProtocol.Frame frame) {
+    switch (frame.type) {
+      case WireProtocol.PRESENCE:
+        applyPresence(frame.payload);
+        break;
+      case WireProtocol.USER_LIST:
+        readUserList(frame.payload);
+        break;
+      case WireProtocol.TEXT: //Only a server notice can tell this client it was renamed
+        checkRenamed(frame.payload);
+        newMessages.add(frame.payload);
+        break;
+      default: //Messages to everyone and whispers are shown as they are
+        newMessages.add(frame.payload);
+    }
+  }
+  
+  /**
+   * requestBinary
+   * Asks the server for the binary framing; messages to the server are held (nothing waits) until it answers or a
+   * short timeout passes, in which case the server does not know the binary framing and the client keeps using text
+   */
+  private void requestBinary() {
+    int request;
+    synchronized (sendLock) {
+      output.println("<?><" + WireProtocol.BINARY_REQUEST + ">");
+      output.flush();
+      binaryPending = true;
+      request = ++binaryRequests;
+    }
+    CompletableFuture.delayedExecutor(2000, TimeUnit.MILLISECONDS).execute(() -> keepText(request));
+  }
+  
+  /**
+   * keepText
+   * Gives up waiting for the server to agree to the binary framing and sends the held messages as text
+   * @param request, an int that is which request for the binary framing timed out
+   */
+  private void keepText(int request) {
+    synchronized (sendLock) {
+      if (binaryPending && request == binaryRequests) {
+        binaryPending = false;
+        sendHeld();
+      }
+    }
+  }
+  
+  /**
+   * startBinary
+   * Switches to the binary framing once the server has agreed to it, and tells the server compressed frames are welcome
+   * (servers that do not compress ignore it)
+   */
+  private void startBinary() {
+    synchronized (sendLock) {
+      binary = true;
+      binaryPending = false;
+      if (deflate) {
+        try {
+          WireProtocol.writeFrame(frameOutput, WireProtocol.CONTROL, WireProtocol.DEFLATE_REQUEST);
+          frameOutput.flush();
+        } catch (IOException e) {
+          System.out.println("Failed to send message to the server...");
+        }
+      }
+      sendHeld();
+    }
+  }
+  
+  /**
+   * sendHeld
+   * Sends the messages held while the server was asked for the binary framing, in the framing now in use
+   * (called holding sendLock)
+   */
+  private void sendHeld() {
+    for (String[] held : heldMessages) {
+      write(held[0], held[1]);
+    }
+    heldMessages.clear();
+  }
+  
+  /**
+   * sendToServer
+   * Sends a message to the server in the current framing
+   * @param recipient, a String that is "*" for everyone, "?" for the server, or the user to whisper to
+   * @param message, a String that is the message
+   */
+  private void sendToServer(String recipient, String message) {
+    synchronized (sendLock) {
+      if (binaryPending) { //Held until the server answers, so the event thread never waits on it
+        heldMessages.add(new String[] {recipient, message});
+      } else {
+        write(recipient, message);
+      }
+    }
+  }
+  
+  /**
+   * write
+   * Writes a message to the server in the current framing (called holding sendLock)
+   * @param recipient, a String that is "*" for everyone, "?" for the server, or the user to whisper to
+   * @param message, a String that is the message
+   */
+  private void write(String recipient, String message) {
+    if (!binary) {
+      output.println("<" + recipient + "><" + message + ">");
+      output.flush();
+      return;
+    }
+    
+    try {
+      if (recipient.equals("*")) {
+        WireProtocol.writeFrame(frameOutput, WireProtocol.BROADCAST, message);
+      } else if (recipient.equals("?")) {
+        WireProtocol.writeFrame(frameOutput, WireProtocol.CONTROL, message);
+      } else {
+        WireProtocol.writeFrame(frameOutput, WireProtocol.WHISPER, recipient + "\0" + message);
+      }
+      frameOutput.flush();
+    } catch (IOException e) {
+      System.out.println("Failed to send message to the server...");
+      e.printStackTrace();
+    }
+  }
+  
+  /**
+   * checkRenamed
+   * Picks up the name the server gave this client if the one asked for was taken
+   * ("Username <name> is taken; you are logged in as <name(n)>")
+   * @param msg, a String that is a notice from the server
+   */
+  private void checkRenamed(String msg) {
+    if (msg.startsWith("Username <") && msg.endsWith(">") && msg.indexOf("; you are logged in as <") != -1) {
+      username = msg.substring(msg.lastIndexOf("<") + 1, msg.length() - 1);
+      users.remove(username);
+      accountLabel.setText(username);
+    }
+  }
+  
+  /**
+   * applyPresence
+   * Applies a presence change from the server to the user list
+   * "|+|version|user|status" joined, "|-|version|user" left, "|~|version|user|status" changed status,
+   * "|=|version|user list" full list; anything else starting with a bar is shown as an ordinary notice
+   * @param msg, a String that is the presence change
+   */
+  private void applyPresence(String msg) {
+    String[] parts = msg.split("\\|", 4);
+    if (parts.length < 4 || parts[1].length() != 1 || "+-~=".indexOf(parts[1].charAt(0)) == -1) { //Not a presence change
+      newMessages.add(msg);
+      return;
+    }
+    char change = parts[1].charAt(0);
+    String rest = parts[3];
+    try {
+      presenceVersion = Long.parseLong(parts[2]);
+    } catch (NumberFormatException e) { //Not a presence change either
+      newMessages.add(msg);
+      return;
+    }
+    
+    if (change == '=') {
+      readUserList(rest);
+    } else if (change == '-') {
+      users.remove(rest);
+    } else if (rest.indexOf("|") != -1 && !rest.substring(0, rest.indexOf("|")).equals(username)) { //Joined or changed status
+      users.put(rest.substring(0, rest.indexOf("|")), rest.substring(rest.indexOf("|") + 1));
+    }
+  }
+  
+  /**
+   * readUserList
+   * Changes the user list to the users in a "user|status/user|status/" list, leaving this client out
+   * (the server sends everyone the same list); only the users who differ are changed in the windows
+   * @param list, a String that is the list of users
+   */
+  private void readUserList(String list) {
+    String[] entries = list.split("/");
+    HashMap<String, String> statuses = new HashMap<String, String>();
+    for (int i = 0; i < entries.length; i++) {
+      if (entries[i].indexOf("|") != -1 && !entries[i].substring(0, entries[i].indexOf("|")).equals(username)) {
+        statuses.put(entries[i].substring(0, entries[i].indexOf("|")), entries[i].substring(entries[i].indexOf("|") + 1));
+      }
+    }
+    users.replaceAll(statuses);
   }
   
   //Inner classes for EventListeners
   
+  /**
+   * [UserRenderer.java]
+   * Shows each user in the user list as "user|status"
+   */
+  class UserRenderer extends DefaultListCellRenderer {
+    private static final long serialVersionUID = 1L;
+    
+    public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean hasFocus) {
+      String status = users.getStatus((String)value);
+      return super.getListCellRendererComponent(list, (status == null) ? value : value + "|" + status, index, isSelected, hasFocus);
+    }
+  }
+  
+  /**
+   * [FindListener.java]
+   * The document listener for the find field; selects the first user whose name starts with what was typed
+   */
+  class FindListener implements javax.swing.event.DocumentListener {
+    public void insertUpdate(javax.swing.event.DocumentEvent event) {
+      find();
+    }
+    public void removeUpdate(javax.swing.event.DocumentEvent event) {
+      find();
+    }
+    public void changedUpdate(javax.swing.event.DocumentEvent event) {
+    }
+    private void find() {
+      int index = findField.getText().isEmpty() ? -1 : users.indexOfPrefix(findField.getText()); //Binary search
+      if (index == -1) {
+        userList.clearSelection();
+      } else {
+        userList.setSelectedIndex(index);
+        userList.ensureIndexIsVisible(index);
+      }
+    }
+  }
+  
+  /**
+   * [WhisperKeys.java]
+   * Picks the user to whisper to as their name is typed into the whisper box; keys typed less than a second apart
+   * add to the name
+   */
+  class WhisperKeys implements JComboBox.KeySelectionManager {
+    private StringBuilder typed = new StringBuilder();
+    private long lastTyped = 0;
+    
+    public int selectionForKey(char key, ComboBoxModel<?> model) {
+      long now = System.currentTimeMillis();
+      if (now - lastTyped > 1000) {
+        typed.setLength(0);
+      }
+      lastTyped = now;
+      typed.append(key);
+      int index = users.indexOfPrefix(typed.toString()); //Binary search
+      return (index == -1) ? -1 : index + 1; //The whisper box has an empty first option
+    }
+  }
+  
+  /**
+   * [HistoryScroller.java]
+   * The adjustment listener for the chat's scroll bar; scrolling to the top reads older messages back from disk,
+   * scrolling to the bottom goes forward again until the chat follows new messages
+   */
+  class HistoryScroller implements AdjustmentListener {
+    public void adjustmentValueChanged(AdjustmentEvent event) {
+      JScrollBar bar = chatScroll.getVerticalScrollBar();
+      if (scrolling || bar.getMaximum() - bar.getMinimum() <= bar.getVisibleAmount()) { //Moved by the program, or nothing to scroll
+        return;
+      }
+      if (bar.getValue() == bar.getMinimum()) {
+        int added = history.pageOlder();
+        if (added > 0) {
+          scrollChatBy(added);
+        }
+      } else if (bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum()) {
+        int removed = history.pageNewer();
+        if (removed > 0) {
+          scrollChatBy(-removed);
+        }
+      } else {
+        history.stopFollowing();
+      }
+    }
+  }
+  
+  /**
+   * [MessageRenderer.java]
+   * Shows each message on one row, with the whole message as a tool tip in case the row is too narrow for it
+   */
+  class MessageRenderer extends DefaultListCellRenderer {
+    private static final long serialVersionUID = 1L;
+    
+    public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean hasFocus) {
+      JLabel label = (JLabel)super.getListCellRendererComponent(list, value, index, isSelected, hasFocus);
+      label.setToolTipText((String)value);
+      return label;
+    }
+  }
+  
   /**
    * [QuitButtonListener.java]
    * The button listener for quitting the program
@@ -254,8 +787,8 @@ class ChatClient {
    */
   class QuitButtonListener implements ActionListener {
     public void actionPerformed(ActionEvent event)  {
-      output.println("<?><quit>"); //Send quitting message to server
-      output.flush();
+      sendToServer("?", "quit"); //Send quitting message to server
+      reconnectDelay = -1; //Do not come back after a restart
       running = false; //Break out of loop
     }     
   }
@@ -268,8 +801,8 @@ class ChatClient {
    */
   class WindowTracker extends WindowAdapter {
     public void windowClosing(WindowEvent event) {
-      output.println("<?><quit>");
-      output.flush();
+      sendToServer("?", "quit");
+      reconnectDelay = -1;
       running = false;
     }
   }
@@ -284,13 +817,14 @@ class ChatClient {
     public void actionPerformed(ActionEvent event) {
       if (typeField.getText().trim().equals("")) { //Prevents input of only whitespaces
         typeField.setText("");
+      } else if (whisperBox.getSelectedItem().equals("") && !EVERYONE.equals(roomBox.getSelectedItem())) {
+        sendToServer("#" + roomBox.getSelectedItem(), typeField.getText()); //Sends message to the selected room
+        typeField.setText("");
       } else if (whisperBox.getSelectedItem().equals("")) { //Sends message to all users
-        output.println("<*>" + "<" + typeField.getText() + ">");
-        output.flush();
+        sendToServer("*", typeField.getText());
         typeField.setText("");
       } else { //Sends message to the user selected in the whisper box
-        output.println("<" + whisperBox.getSelectedItem() + "><" + typeField.getText() + ">");
-        output.flush();
+        sendToServer((String)whisperBox.getSelectedItem(), typeField.getText());
         typeField.setText("");
       }
     }
@@ -307,9 +841,10 @@ class ChatClient {
       if ((usernameField.getText().trim().equals("")) || (usernameField.getText().indexOf("/") != -1) ||
           (usernameField.getText().indexOf(":") != -1) || (usernameField.getText().indexOf("*") != -1) ||
           (usernameField.getText().indexOf("?") != -1) || (usernameField.getText().indexOf("<") != -1) ||
-          (usernameField.getText().indexOf(">") != -1) || (usernameField.getText().indexOf("|") != -1)) {
+          (usernameField.getText().indexOf(">") != -1) || (usernameField.getText().indexOf("|") != -1) ||
+          (usernameField.getText().indexOf("#") != -1)) {
         errorLabel.setText("Username must consist of at least one character and cannot contain the following " +
-                           "characters: / : * ? < > |");
+                           "characters: / : * ? < > | #");
         usernameField.setText("");
       } else {
         username = usernameField.getText();
@@ -322,6 +857,56 @@ class ChatClient {
     }
   }
   
+  /**
+   * [RoomListener.java]
+   * The action listener for the room box; typing the name of a room that is not in the list joins it
+   */
+  class RoomListener implements ActionListener {
+    public void actionPerformed(ActionEvent event) {
+      String room = ((String)roomBox.getSelectedItem()).trim();
+      if (room.startsWith("#")) {
+        room = room.substring(1);
+      }
+      
+      if (room.equals("") || room.equals(EVERYONE)) {
+        return;
+      }
+      
+      for (int i = 0; i < roomBox.getItemCount(); i++) { //Already joined, so the user is just picking it
+        if (roomBox.getItemAt(i).equals(room)) {
+          return;
+        }
+      }
+      
+      if (!room.matches("[A-Za-z0-9_-]{1,32}")) {
+        ArrayList<String> notice = new ArrayList<String>();
+        notice.add("Room names are 1 to 32 letters, digits, - or _");
+        showMessages(notice);
+        roomBox.setSelectedItem(EVERYONE);
+        return;
+      }
+      
+      sendToServer("?", "join " + room);
+      roomBox.addItem(room);
+      roomBox.setSelectedItem(room);
+    }
+  }
+  
+  /**
+   * [LeaveListener.java]
+   * The action listener for leaving the room selected in the room box
+   */
+  class LeaveListener implements ActionListener {
+    public void actionPerformed(ActionEvent event) {
+      Object room = roomBox.getSelectedItem();
+      if (room != null && !room.equals(EVERYONE)) {
+        sendToServer("?", "leave " + room);
+        roomBox.removeItem(room);
+        roomBox.setSelectedItem(EVERYONE);
+      }
+    }
+  }
+  
   /**
    * [StatusListener.java]
    * The action listener for setting the client's current status
@@ -331,8 +916,7 @@ class ChatClient {
   class StatusListener implements ActionListener {
     public void actionPerformed(ActionEvent event) {
       JComboBox cb = (JComboBox)event.getSource();
-      output.println("<?>" + "<" + (String)cb.getSelectedItem() + ">"); //Set status
-      output.flush();
+      sendToServer("?", (String)cb.getSelectedItem()); //Set status
     }
   }
 }
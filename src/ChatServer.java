@@ -7,14 +7,35 @@
 //imports 
 import java.io.*;
 import java.util.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 /**
  * ChatServer
  * start and manages server using multiple threads
  */
-class ChatServer {
+class ChatServer implements ClusterNode.Handler {
   
   /**
    * Server socket for connection
@@ -22,32 +43,353 @@ class ChatServer {
   ServerSocket serverSock;
   
   /**
-   * controls if server is accepting clients
+   * controls if server is accepting clients; set to false once the server starts shutting down
    */
-  static Boolean running = true;
+  private volatile boolean running = true;
   
   /**
-   * stores all active clients on the server
+   * keeps track of whether the server is shutting down, and lets shutdown wait for the selector loop to finish draining
    */
-  private ArrayList<ConnectionHandler> clients = new ArrayList<>();
+  private volatile boolean stopping = false;
+  private CountDownLatch stopped = new CountDownLatch(1);
+  
+  /**
+   * longest time in ms spent sending what is queued to clients when shutting down, and the least time and the
+   * spread in ms of the reconnect delay suggested to each client (each gets a random delay so they do not all come back at once)
+   */
+  private final long drainMillis;
+  private final long reconnectMillis;
+  private final long reconnectSpread;
+  
+  /**
+   * stores all active clients on the server (safe to loop over while clients come and go)
+   */
+  private Set<ConnectionHandler> clients = ConcurrentHashMap.newKeySet();
+  
+  /**
+   * logged in clients by username
+   */
+  private ConcurrentHashMap<String, ConnectionHandler> users = new ConcurrentHashMap<>();
+  
+  /**
+   * members of each room by room name; a room exists while it has members
+   */
+  private ConcurrentHashMap<String, Set<ConnectionHandler>> rooms = new ConcurrentHashMap<>();
+  
+  /**
+   * links to the other servers of the cluster, or null if this server runs alone (--cluster-port)
+   */
+  private ClusterNode cluster;
+  
+  /**
+   * users logged in on other nodes of the cluster: username -> {node, status}
+   */
+  private ConcurrentHashMap<String, String[]> remoteUsers = new ConcurrentHashMap<>();
+  
+  /**
+   * version counter and recent history of joins, leaves and status changes
+   */
+  private Presence presence = new Presence(1024);
+  
+  /**
+   * every logged in user in the cluster as "user|status/user|status/..."; rebuilt once per presence change and
+   * replaced as a whole, so it is read without a lock and the same string is sent to everyone (clients leave themselves out)
+   */
+  private volatile String userList = "";
+  
+  /**
+   * charset used to turn bytes into lines and back, same as the client's streams
+   */
+  static final Charset CHARSET = Charset.defaultCharset();
+  
+  /**
+   * characters a username cannot contain, since the protocol uses them to mark out names, lists, rooms and presence
+   * changes (the client's login window refuses the same ones)
+   */
+  static final String NAME_RESERVED = "/:*?<>|#";
+  
+  /**
+   * a request for presence deltas, with the version the client has if it has one (compiled once, not per message)
+   */
+  private static final Pattern PRESENCE_REQUEST = Pattern.compile("presence( \\d{1,19})?");
+  
+  /**
+   * a room name
+   */
+  private static final Pattern ROOM_NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+  
+  /**
+   * settings given on the command line
+   */
+  private ServerOptions options;
+  
+  /**
+   * selector used to wait for client input (nio mode only)
+   */
+  private Selector selector;
+  
+  /**
+   * deadlines of all clients; advanced by the selector loop in nio mode, otherwise by its own thread
+   */
+  private TimingWheel timeouts = new TimingWheel(1000, 128);
+  
+  /**
+   * time in ms a client has to log in, and to stay inactive once logged in, before it is disconnected
+   */
+  private final long loginTimeout;
+  private final long idleTimeout;
+  
+  /**
+   * clients whose socket failed while writing and should be closed by the selector loop (nio mode only; added to
+   * from any thread that sends)
+   */
+  private ConcurrentLinkedQueue<ConnectionHandler> closing = new ConcurrentLinkedQueue<>();
+  
+  /**
+   * clients with messages held back for batching, oldest first, written by the selector loop once their window ends (nio mode only)
+   */
+  private ConcurrentLinkedQueue<ConnectionHandler> flushing = new ConcurrentLinkedQueue<>();
+  
+  /**
+   * clients that are not read from until their rate limit lets them send again, soonest first (nio mode, selector thread only)
+   */
+  private PriorityQueue<ConnectionHandler> throttled = new PriorityQueue<>((a, b) -> Long.compare(a.resumeAt-b.resumeAt, 0));
+  
+  /**
+   * clients whose username another node of the cluster has granted, logged in by the selector loop (nio mode only)
+   */
+  private ConcurrentLinkedQueue<ConnectionHandler> claimed = new ConcurrentLinkedQueue<>();
+  
+  /**
+   * thread running the selector loop (nio mode only)
+   */
+  private Thread selectorThread;
+  
+  /**
+   * runs the writers that drain client outbound queues (thread mode only; benchmarks run them inline)
+   */
+  Executor writers;
+  
+  /**
+   * how long in ns a message may be held back so that more messages to the same client go out in the same write
+   * (0 writes at once), and how many bytes are gathered before writing without waiting for the rest of the window
+   * (nio mode only; in thread mode a client's writer already sends everything queued while it was busy in one write)
+   */
+  private final long batchNanos;
+  private final int batchBytes;
+  
+  /**
+   * smallest frame payload in bytes sent compressed to clients that accept compressed frames (-1 to never compress),
+   * and a deflater for each thread that compresses frames
+   */
+  private final int deflateMinBytes;
+  private final ThreadLocal<Deflater> deflaters;
+  
+  /**
+   * most messages that can be waiting for one client
+   */
+  private int queueSize;
+  
+  /**
+   * what to do with a client whose outbound queue is full
+   */
+  private OutboundQueue.Policy slowPolicy;
+  
+  /**
+   * counters, latency histograms and gauges, readable over JMX and with --metrics-port
+   */
+  final ServerMetrics metrics = new ServerMetrics();
+  
+  /**
+   * where the server reports what happens; written in the background so logging never waits on the console or disk
+   */
+  final ServerLog log;
+  
+  /**
+   * on-disk history of broadcasts and whispers, or null if the server keeps none (--journal=dir)
+   */
+  private MessageJournal journal;
+  
+  /**
+   * most journaled messages replayed to a user at login, and how far back they may go in ms (0 for no limit)
+   */
+  private int replayCount;
+  private long replayMillis;
+  
+  /**
+   * whispers kept for users who are not online until they log in, or null if the server keeps none (--mailbox=dir)
+   */
+  private MailboxStore mailboxes;
   
   /** Main
-    * @param args parameters from command line
+    * @param args parameters from command line (--io=thread|nio, --executor=thread|virtual|pool, --pool-size=n,
+    *             --queue-size=n, --slow-policy=drop-oldest|coalesce|disconnect, --metrics-port=n,
+    *             --log-level=off|error|warn|info|debug, --log-file=path, --log-size=mb, --log-files=n,
+    *             --journal=dir, --replay-count=n, --replay-minutes=n; see MessageJournal for the rest,
+    *             --login-timeout=s, --idle-timeout=s, --batch-window-us=n, --batch-kb=n,
+    *             --drain-ms=n, --reconnect-ms=n, --reconnect-spread-ms=n, --deflate-min-bytes=n, --deflate-level=0-9,
+    *             --broadcast-rate=n, --broadcast-burst=n, --whisper-rate=n, --whisper-burst=n, --status-rate=n, --status-burst=n,
+    *             --mailbox=dir, --mailbox-messages=n, --mailbox-sender=n, --mailbox-mb=n, --mailbox-days=n,
+    *             --port=n, --cluster-port=n, --cluster-host=address, --peers=host:port,...; see ClusterNode)
     */
   public static void main(String[] args) { 
-    new ChatServer().go(); //start the server
+    new ChatServer(new ServerOptions(args)).go(); //start the server
+  }
+  
+  /** ChatServer
+    * Constructor - uses the default settings
+    */
+  ChatServer() {
+    this(new ServerOptions(new String[0]));
+  }
+  
+  /** ChatServer
+    * Constructor
+    * @param options - settings for this server
+    */
+  ChatServer(ServerOptions options) {
+    this.options = options;
+    this.queueSize = options.getInt("queue-size", 256);
+    this.slowPolicy = OutboundQueue.Policy.parse(options.get("slow-policy", "coalesce"));
+    this.log = new ServerLog(options);
+    this.replayCount = options.getInt("replay-count", 50);
+    this.replayMillis = options.getInt("replay-minutes", 0)*60000L;
+    this.loginTimeout = options.getInt("login-timeout", 60)*1000L;
+    this.idleTimeout = options.getInt("idle-timeout", 60)*1000L;
+    this.batchNanos = options.get("io", "thread").equals("nio") ? options.getInt("batch-window-us", 0)*1000L : 0;
+    this.batchBytes = options.getInt("batch-kb", 16)*1024;
+    this.drainMillis = options.getInt("drain-ms", 5000);
+    this.reconnectMillis = options.getInt("reconnect-ms", 1000);
+    this.reconnectSpread = options.getInt("reconnect-spread-ms", 10000);
+    this.deflateMinBytes = options.getInt("deflate-min-bytes", 256);
+    int deflateLevel = options.getInt("deflate-level", Deflater.BEST_SPEED);
+    this.deflaters = ThreadLocal.withInitial(() -> new Deflater(deflateLevel));
+    
+    if (options.get("journal", null) != null) {
+      try {
+        journal = new MessageJournal(options);
+        Runtime.getRuntime().addShutdownHook(new Thread(journal::close)); //sync what is left when the server exits
+        log.info("Journal has "+journal.size()+" messages");
+      } catch (IOException e) {
+        log.error("Could not open the journal; history will not be kept", e);
+      }
+    }
+    
+    if (options.get("mailbox", null) != null) {
+      try {
+        mailboxes = new MailboxStore(options, log);
+        metrics.gauge("mailbox_users", mailboxes::size);
+        metrics.gauge("mailbox_bytes", mailboxes::getBytes);
+        metrics.gauge("mailbox_expired", mailboxes::getExpired);
+        log.info("Mailboxes hold whispers for "+mailboxes.size()+" users");
+      } catch (IOException e) {
+        log.error("Could not open the mailboxes; whispers to users who are not online will not be kept", e);
+      }
+    }
+    
+    if (options.getInt("cluster-port", 0) > 0) {
+      try {
+        cluster = new ClusterNode(options, this, log);
+        metrics.gauge("remote_users", () -> remoteUsers.size());
+        metrics.gauge("cluster_dropped", cluster::getDropped);
+      } catch (IOException e) {
+        log.error("Could not start the cluster link; running alone", e);
+      }
+    }
+    
+    metrics.gauge("clients", () -> clients.size());
+    metrics.gauge("users", () -> users.size());
+    metrics.gauge("log_dropped", log::getDropped);
+    metrics.gauge("deflate_ratio_percent", () -> { //compressed size as a percentage of the original
+      long input = metrics.deflateInput.sum();
+      return (input == 0) ? 100 : metrics.deflateOutput.sum()*100/input;
+    });
+    metrics.gauge("outbound_queued", () -> {
+      long queued = 0;
+      for (ConnectionHandler client:clients) {
+        queued += client.outbound.size();
+      }
+      return queued;
+    });
+    metrics.gauge("outbound_queue_depth_max", () -> {
+      long deepest = 0;
+      for (ConnectionHandler client:clients) {
+        deepest = Math.max(deepest, client.outbound.size());
+      }
+      return deepest;
+    });
+    metrics.gaugeFamily("outbound_queue_depth", () -> { //only clients with something waiting, to keep the output short
+      LinkedHashMap<String, Long> depths = new LinkedHashMap<>();
+      for (ConnectionHandler client:clients) {
+        int depth = client.outbound.size();
+        if (depth > 0) {
+          depths.put("client=\""+client.clientNum+"\",user=\""+client.getUser()+"\"", (long)depth);
+        }
+      }
+      return depths;
+    });
   }
   
   /** Go
-    * Starts the server
+    * Starts the server in the io mode given by the options; stopping the server (e.g. with Ctrl-C or kill) shuts it down gracefully
     */
   public void go() { 
-    System.out.println("Waiting for a client connection..");
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      shutdown();
+      log.close(); //write what is left once nothing more is logged
+    }, "shutdown"));
+    
+    if (!metrics.registerJmx()) {
+      log.warn("Could not register metrics with JMX");
+    }
+    
+    if (options.getInt("metrics-port", 0) > 0) {
+      try {
+        metrics.serve(options.getInt("metrics-port", 0));
+        log.info("Metrics at http://127.0.0.1:"+options.getInt("metrics-port", 0)+"/metrics");
+      } catch (IOException e) {
+        log.error("Could not start the metrics endpoint", e);
+      }
+    }
+    
+    if (options.get("io", "thread").equals("nio")) {
+      goSelector();
+    } else {
+      goThreads();
+    }
+  }
+  
+  /** goThreads
+    * Starts the server with a blocking thread per client, run by the executor given in the options
+    */
+  public void goThreads() { 
+    log.info("Waiting for a client connection..");
     
     Socket client = null;//hold the client connection
     
     try {
-      serverSock = new ServerSocket(5000);  //assigns an port to the server
+      ServerSocketChannel serverChannel = ServerSocketChannel.open(); //opened as a channel so clients can use gathering writes
+      serverChannel.bind(new InetSocketAddress(options.getInt("port", 5000)));  //assigns an port to the server
+      serverSock = serverChannel.socket();
+      
+      Executor executor = newExecutor(options.get("executor", "thread"));
+      
+      //writers only run while a client has messages waiting, so a cached pool is enough for platform threads
+      writers = options.get("executor", "thread").equals("virtual") ? newExecutor("virtual") : Executors.newCachedThreadPool();
+      
+      //one thread checks every client's deadline once a tick; blocked readers need no timeout of their own
+      Thread ticker = new Thread(() -> {
+        while (running) {
+          try {
+            Thread.sleep(timeouts.getTickMillis());
+          } catch (InterruptedException e) {
+            return;
+          }
+          timeouts.advance(System.currentTimeMillis());
+        }
+      }, "timeouts");
+      ticker.setDaemon(true);
+      ticker.start();
       
       //index to determine client number
       int index = 1;
@@ -55,338 +397,2139 @@ class ChatServer {
       while(running) {  //this loops to accept multiple clients
         
         client = serverSock.accept();  //wait for connection
-        System.out.println("Client connected");
+        log.info(index, "Client connected");
+        metrics.connections.increment();
         
         ConnectionHandler newClient = new ConnectionHandler(client, index);
         clients.add(newClient);
+        timeouts.schedule(newClient);
         
         index++;
         
-        Thread t = new Thread(newClient); //create a thread for the new client and pass in the socket
-        t.start(); //start the new thread
+        executor.execute(newClient); //run the new client on its own thread
+        
+      }
+      
+    }catch(Exception e) { 
+      
+      if (!running) {
+        return; //shutdown closed the server socket
+      }
+      log.error("Error accepting connection", e);
+      shutdown(); //let the clients know and send what they are owed before quitting
+      System.exit(-1);
+    }
+  }
+  
+  /** newExecutor
+    * creates the executor that runs client threads
+    *   thread  - a new platform thread per client (default)
+    *   virtual - a new virtual thread per client (needs Java 21+)
+    *   pool    - a fixed pool of --pool-size platform threads; clients past the pool size wait for a free thread
+    * @param mode - one of the modes above
+    * @return executor for client threads
+    */
+  private Executor newExecutor(String mode) {
+    if (mode.equals("virtual")) {
+      try { //looked up by reflection so the server still compiles and runs on older versions of java
+        return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+        log.warn("Virtual threads need Java 21 or newer; using platform threads");
+      }
+    } else if (mode.equals("pool")) {
+      return Executors.newFixedThreadPool(options.getInt("pool-size", 200));
+    }
+    
+    return runnable -> new Thread(runnable).start();
+  }
+  
+  /** goSelector
+    * Starts the server with a single thread that waits on a selector and only reads from a client when bytes arrive
+    */
+  public void goSelector() {
+    log.info("Waiting for a client connection..");
+    
+    try {
+      selector = Selector.open();
+      selectorThread = Thread.currentThread();
+      ServerSocketChannel serverChannel = ServerSocketChannel.open();
+      serverChannel.bind(new InetSocketAddress(options.getInt("port", 5000)));  //assigns an port to the server
+      serverChannel.configureBlocking(false);
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+      
+      //index to determine client number
+      int index = 1;
+      
+      while(running) {
+        
+        //wait for input, waking up once a tick to check deadlines, or sooner when a batching window ends
+        ConnectionHandler nextFlush = flushing.peek();
+        long wait = timeouts.getTickMillis();
+        
+        if (nextFlush != null) {
+          wait = Math.min(wait, (nextFlush.flushDeadline-System.nanoTime()+999999)/1000000);
+        }
+        if (!throttled.isEmpty()) {
+          wait = Math.min(wait, (throttled.peek().resumeAt-System.nanoTime()+999999)/1000000);
+        }
+        if (wait > 0) {
+          selector.select(wait);
+        } else {
+          selector.selectNow();
+        }
+        
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          
+          if (!key.isValid()) {
+            continue;
+          }
+          
+          if (key.isAcceptable()) {
+            SocketChannel channel = serverChannel.accept();
+            
+            if (channel == null) {
+              continue;
+            }
+            
+            log.info(index, "Client connected");
+            metrics.connections.increment();
+            
+            channel.configureBlocking(false);
+            ConnectionHandler newClient = new ConnectionHandler(channel, index);
+            newClient.key = channel.register(selector, SelectionKey.OP_READ, newClient);
+            clients.add(newClient);
+            timeouts.schedule(newClient);
+            
+            index++;
+            
+          } else {
+            ConnectionHandler handler = (ConnectionHandler)key.attachment();
+            
+            if (key.isReadable()) {
+              handler.readFromChannel();
+            }
+            if (key.isValid() && key.isWritable()) {
+              handler.writeToChannel();
+            }
+          }
+        }
+        
+        //go back to reading from the clients whose rate limit lets them send again
+        long now = System.nanoTime();
+        while (!throttled.isEmpty() && throttled.peek().resumeAt-now <= 0) {
+          throttled.poll().resumeReading();
+        }
+        
+        //log in the clients whose username another node has granted
+        while (!claimed.isEmpty()) {
+          claimed.poll().claimed();
+        }
+        
+        //write what was held back for the clients whose batching window has ended
+        while (!flushing.isEmpty() && flushing.peek().flushDeadline-now <= 0) {
+          flushing.poll().flush();
+        }
+        
+        //close the clients that failed while being written to
+        while (!closing.isEmpty()) {
+          closing.poll().closeConnection();
+        }
+        
+        timeouts.advance(System.currentTimeMillis());
+      }
+      
+      serverChannel.close();
+      drainSelector();
+      
+    } catch (IOException e) {
+      log.error("Error accepting connection", e);
+      running = false;
+      stopping = true;
+      drainSelector(); //let the clients know and send what they are owed before quitting
+      System.exit(-1);
+    }
+  }
+  
+  /** shutdown
+    * stops accepting clients, tells every client the server is restarting and when to reconnect, sends what is queued
+    * for them (for up to --drain-ms) and closes them; users are not told about each other leaving
+    */
+  public void shutdown() {
+    synchronized (this) {
+      if (stopping) {
+        return;
+      }
+      stopping = true;
+    }
+    running = false;
+    log.info("Shutting down; sending what is queued to "+clients.size()+" clients for up to "+drainMillis+" ms");
+    
+    if (selector != null) { //the selector loop drains the clients once it sees running is false
+      selector.wakeup();
+      
+      try {
+        stopped.await(drainMillis+1000, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return;
+    }
+    
+    try {
+      if (serverSock != null) {
+        serverSock.close(); //the accept loop ends
+      }
+    } catch (IOException e) {
+      log.error("Failed to close server socket", e);
+    }
+    
+    long deadline = System.currentTimeMillis()+drainMillis;
+    sendRestartNotices();
+    
+    for (ConnectionHandler client:clients) {
+      client.outbound.awaitDrained(Math.max(deadline-System.currentTimeMillis(), 1));
+    }
+    for (ConnectionHandler client:clients) {
+      client.closeConnection();
+    }
+    log.info("Shut down");
+    stopped.countDown();
+  }
+  
+  /** drainSelector
+    * shutdown in nio mode, run by the selector loop: stops reading, tells every client the server is restarting,
+    * writes what is queued until every queue is empty or --drain-ms has passed, then closes every client
+    */
+  private void drainSelector() {
+    long deadline = System.currentTimeMillis()+drainMillis;
+    
+    for (ConnectionHandler client:clients) {
+      client.stopReading();
+    }
+    sendRestartNotices();
+    
+    while (!flushing.isEmpty()) {
+      flushing.poll().flush(); //no reason to hold anything back now
+    }
+    
+    try {
+      while (System.currentTimeMillis() < deadline && !isDrained()) {
+        selector.select(Math.max(deadline-System.currentTimeMillis(), 1));
         
+        for (SelectionKey key:selector.selectedKeys()) {
+          if (key.isValid() && key.isWritable()) {
+            ((ConnectionHandler)key.attachment()).writeToChannel();
+          }
+        }
+        selector.selectedKeys().clear();
+      }
+    } catch (IOException e) {
+      log.error("Failed to send what is queued", e);
+    }
+    
+    for (ConnectionHandler client:clients) {
+      client.closeConnection();
+    }
+    log.info("Shut down");
+    stopped.countDown();
+  }
+  
+  /** isDrained
+    * @return true if nothing is waiting to be written to any client
+    */
+  private boolean isDrained() {
+    for (ConnectionHandler client:clients) {
+      if (!client.isDrained()) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /** sendRestartNotices
+    * tells every client the server is restarting and how long to wait before reconnecting, as a notice for the user
+    * and as an instruction (WireProtocol.RESTART) for the client; the delays are spread out at random so the
+    * clients do not all reconnect at the same moment
+    */
+  private void sendRestartNotices() {
+    for (ConnectionHandler client:clients) {
+      long delay = reconnectMillis+ThreadLocalRandom.current().nextLong(reconnectSpread+1);
+      client.send(WireProtocol.RESTARTING+delay+" ms");
+      client.send(new ServerMessage(WireProtocol.CONTROL, WireProtocol.RESTART+delay));
+    }
+  }
+  
+  /**
+   * newLimit
+   * creates a client's rate limit for one kind of command from the settings --<command>-rate (commands per second,
+   * 0 for no limit) and --<command>-burst (commands that may be sent at once)
+   * @param command - broadcast, whisper or status
+   * @param rate - commands per second if not set
+   * @param burst - burst if not set
+   * @return the limit, or null if there is none
+   */
+  private TokenBucket newLimit (String command, int rate, int burst) {
+    rate = options.getInt(command+"-rate", rate);
+    return (rate <= 0) ? null : new TokenBucket(rate, options.getInt(command+"-burst", burst));
+  }
+  
+  /**
+   * getUserList
+   * @return A string containing the user names and status' of every client, as of the last presence change
+   */
+  String getUserList () {
+    return userList;
+  }
+  
+  /**
+   * rebuildUserList
+   * builds the user list again after a presence change (or after addClient)
+   */
+  synchronized void rebuildUserList () {
+    
+    StringBuilder list = new StringBuilder(userList.length()+32);
+    
+    for (ConnectionHandler client:users.values()) {
+      if (client.isLoggedIn()) {
+        list.append(client.getUser()).append("|").append(client.status).append("/");
+      }
+    }
+    
+    for (Map.Entry<String, String[]> remote:remoteUsers.entrySet()) { //users on other nodes of the cluster
+      list.append(remote.getKey()).append("|").append(remote.getValue()[1]).append("/");
+    }
+    userList = list.toString(); //published in one write
+  }
+  
+  /**
+   * reserveUser
+   * atomically claims a username for the specified client, adding "(n)" if the name is already taken
+   * @param name - username the client asked for
+   * @param cl - client claiming the name
+   * @return the username the client got
+   */
+  String reserveUser (String name, ConnectionHandler cl) {
+    
+    if (cluster != null) { //the name's owner node makes sure it is unique across the cluster
+      return reserveUserLater(name, cl).join();
+    }
+    
+    if (users.putIfAbsent(name, cl) == null) {
+      return name;
+    }
+    
+    for (int dupNum = 1; ; dupNum++) { //the lowest free number, so numbers are reused once their users leave
+      String dupName = name+"("+dupNum+")";
+      
+      if (users.putIfAbsent(dupName, cl) == null) {
+        return dupName;
+      }
+    }
+  }
+  
+  /**
+   * reserveUserLater
+   * claims a username for the specified client from the node of the cluster that owns the name, without waiting
+   * @param name - username the client asked for
+   * @param cl - client claiming the name
+   * @return the username the client got, once the owner answers
+   */
+  CompletableFuture<String> reserveUserLater (String name, ConnectionHandler cl) {
+    return cluster.reserve(name).thenCompose(granted -> {
+      if (users.putIfAbsent(granted, cl) == null) {
+        return CompletableFuture.completedFuture(granted);
+      }
+      return reserveUserLater(name, cl); //held here already (claimed locally while the owner was down); ask again
+    });
+  }
+  
+  /**
+   * releaseUser
+   * gives up a username claimed with reserveUser
+   * @param name - username to give up
+   * @param cl - client holding the name
+   */
+  void releaseUser (String name, ConnectionHandler cl) {
+    if (users.remove(name, cl) && cluster != null) {
+      cluster.release(name);
+    }
+  }
+  
+  /**
+   * addClient
+   * adds a logged in client that has no socket; everything sent to it is written to the specified sink
+   * (used by the benchmarks to fill the server with clients; call rebuildUserList once they are all added)
+   * @param sink - where messages to the client are written
+   * @param name - username the client asks for
+   * @return the new client
+   */
+  ConnectionHandler addClient (GatheringByteChannel sink, String name) {
+    
+    ConnectionHandler cl = new ConnectionHandler(sink, clients.size()+1);
+    cl.user = reserveUser(name, cl);
+    cl.status = "Online";
+    cl.loggedIn = true;
+    clients.add(cl);
+    return cl;
+  }
+  
+  /**
+   * encode
+   * turns a message into the bytes of one line; the buffer is read-only so it can be shared by every recipient
+   * @param msg - message to encode
+   * @return buffer holding the encoded line
+   */
+  static ByteBuffer encode (String msg) {
+    return ByteBuffer.wrap((msg+System.lineSeparator()).getBytes(CHARSET)).asReadOnlyBuffer();
+  }
+  
+  /**
+   * sendToAll
+   * sends the specified notice to all clients
+   * @param msg - notice to send
+   */
+  private void sendToAll (String msg) {
+    sendToAll(new ServerMessage(WireProtocol.TEXT, msg));
+  }
+  
+  /**
+   * sendToAll
+   * sends the specified message to all clients; only queues it, so a slow client does not hold up the others
+   * @param msg - message to send
+   */
+  synchronized void sendToAll (ServerMessage msg) {
+    long start = System.nanoTime();
+    
+    for (ConnectionHandler client:clients) {
+      
+      try {  
+        //send message to specific client (encoded once for all clients using the same framing)
+        client.send(msg);
+      }
+      catch (Exception e) {  
+        log.error(client.clientNum, "Could not send message", e);
+      }
+    }
+    metrics.fanOut.record(System.nanoTime()-start);
+  }
+  
+  /**
+   * broadcast
+   * sends a message from a user to everyone, keeping it in the journal first
+   * @param from - user who sent it
+   * @param line - message as it is shown to everyone ("*user: message")
+   */
+  private void broadcast (String from, String line) {
+    metrics.broadcasts.increment();
+    journal(WireProtocol.BROADCAST, from, "*", line);
+    sendToAll(new ServerMessage(WireProtocol.BROADCAST, line));
+    
+    if (cluster != null) {
+      cluster.relay(WireProtocol.BROADCAST, "*", from, line);
+    }
+  }
+  
+  /**
+   * announce
+   * sends the specified notice to every client in the cluster
+   * @param notice - notice to send
+   */
+  private void announce (String notice) {
+    sendToAll(notice);
+    
+    if (cluster != null) {
+      cluster.relay(WireProtocol.TEXT, "*", "", notice);
+    }
+  }
+  
+  /**
+   * journal
+   * keeps a message in the journal, if there is one
+   * @param type - WireProtocol.BROADCAST or WireProtocol.WHISPER
+   * @param from - user who sent it
+   * @param to - user it was sent to, "#room" for a room, or "*" for everyone
+   * @param line - message as it is shown to users
+   */
+  private void journal (byte type, String from, String to, String line) {
+    if (journal == null) {
+      return;
+    }
+    
+    try {
+      journal.append(type, from, to, line); //only a copy into memory; synced to disk in the background
+    } catch (IOException e) {
+      log.error("Could not write to the journal", e);
+    }
+  }
+  
+  /**
+   * joinRoom
+   * adds the specified client to a room, creating the room if it is new, and tells the room
+   * @param cl - client joining
+   * @param room - name of the room
+   */
+  private void joinRoom (ConnectionHandler cl, String room) {
+    if (!ROOM_NAME.matcher(room).matches()) {
+      cl.send("Room names are 1 to 32 letters, digits, - or _");
+      return;
+    }
+    
+    boolean[] joined = {false};
+    Set<ConnectionHandler> members = rooms.compute(room, (name, current) -> { //atomic with leaveRoom removing an empty room
+      Set<ConnectionHandler> set = (current == null) ? ConcurrentHashMap.newKeySet() : current;
+      joined[0] = set.add(cl);
+      return set;
+    });
+    
+    if (joined[0]) {
+      cl.rooms.add(room);
+      sendToRoom(members, new ServerMessage(WireProtocol.TEXT, cl.getUser()+" has joined #"+room));
+      
+      if (cluster != null) {
+        cluster.relay(WireProtocol.TEXT, "#"+room, "", cl.getUser()+" has joined #"+room);
+      }
+    }
+  }
+  
+  /**
+   * leaveRoom
+   * removes the specified client from a room, dropping the room once it is empty
+   * @param cl - client leaving
+   * @param room - name of the room
+   * @param notify - true to tell the rest of the room
+   */
+  private void leaveRoom (ConnectionHandler cl, String room, boolean notify) {
+    boolean[] left = {false};
+    Set<ConnectionHandler> members = rooms.computeIfPresent(room, (name, current) -> {
+      left[0] = current.remove(cl);
+      return current.isEmpty() ? null : current;
+    });
+    cl.rooms.remove(room);
+    
+    if (left[0] && notify) {
+      cl.send("You have left #"+room);
+      if (members != null) {
+        sendToRoom(members, new ServerMessage(WireProtocol.TEXT, cl.getUser()+" has left #"+room));
+      }
+      if (cluster != null) {
+        cluster.relay(WireProtocol.TEXT, "#"+room, "", cl.getUser()+" has left #"+room);
+      }
+    }
+  }
+  
+  /**
+   * sendToRoom
+   * sends the specified message to every member of a room; costs as much as the room is big, not the whole server
+   * @param members - members of the room
+   * @param msg - message to send
+   */
+  private void sendToRoom (Set<ConnectionHandler> members, ServerMessage msg) {
+    synchronized (members) { //everyone in the room sees the room's messages in the same order
+      for (ConnectionHandler member:members) {
+        member.send(msg);
+      }
+    }
+  }
+  
+  /**
+   * replayHistory
+   * sends the specified client the recent messages from the journal (whispers only if it sent or received them)
+   * @param cur - client that just logged in
+   */
+  private void replayHistory (ConnectionHandler cur) {
+    if (journal == null || replayCount <= 0) {
+      return;
+    }
+    
+    ArrayList<MessageJournal.Entry> history = journal.recent(replayCount, 
+                                                             (replayMillis > 0) ? System.currentTimeMillis()-replayMillis : 0,
+                                                             cur.getUser());
+    if (history.isEmpty()) {
+      return;
+    }
+    
+    cur.send("--- Recent messages ---");
+    for (MessageJournal.Entry entry:history) {
+      cur.send(new ServerMessage(entry.type, entry.line));
+    }
+    cur.send("--- End of recent messages ---");
+  }
+  
+  /**
+   * deliverMail
+   * sends the specified client the whispers kept for it while it was not online, all queued before one write;
+   * the mailbox is deleted only once they are queued
+   * @param cur - client that just logged in
+   */
+  private void deliverMail (ConnectionHandler cur) {
+    if (mailboxes == null) {
+      return;
+    }
+    
+    try {
+      mailboxes.loggedIn(cur.getUser()); //from now on the user can be sent mail
+    } catch (IOException e) {
+      log.warn(cur.clientNum, "Could not remember <"+cur.getUser()+"> for mail: "+e.getMessage());
+    }
+    
+    ArrayList<MailboxStore.Letter> letters = mailboxes.take(cur.getUser()); //no disk access unless there is mail
+    if (letters.isEmpty()) {
+      return;
+    }
+    
+    ArrayList<ServerMessage> batch = new ArrayList<>(letters.size()+2);
+    batch.add(new ServerMessage(WireProtocol.TEXT, "--- "+letters.size()+" whispers while you were away ---"));
+    for (MailboxStore.Letter letter:letters) {
+      batch.add(new ServerMessage(WireProtocol.WHISPER, letter.line));
+    }
+    batch.add(new ServerMessage(WireProtocol.TEXT, "--- End of whispers while you were away ---"));
+    cur.send(batch);
+    mailboxes.delivered(cur.getUser());
+    metrics.mailboxDelivered.add(letters.size());
+  }
+  
+  /**
+   * sendPresence
+   * tells every other logged in client about a change to the specified client's presence;
+   * clients that asked for deltas get one small message, the others get their full user list as before
+   * @param subject - client whose presence changed
+   * @param change - '+' joined, '-' left, '~' changed status
+   */
+  private void sendPresence (ConnectionHandler subject, char change) {
+    notifyPresence(subject.getUser(), subject.status, change, subject);
+    
+    if (cluster != null) {
+      cluster.presence(change, subject.getUser(), subject.status);
+    }
+  }
+  
+  /**
+   * notifyPresence
+   * tells the local logged in clients (other than the subject) about a change to a user's presence
+   * @param user - user whose presence changed
+   * @param status - status of the user
+   * @param change - '+' joined, '-' left, '~' changed status
+   * @param subject - local client whose presence changed, or null for a user on another node
+   */
+  private synchronized void notifyPresence (String user, String status, char change, ConnectionHandler subject) {
+    
+    String delta;
+    
+    if (change == '+') {
+      delta = presence.joined(user, status);
+    } else if (change == '-') {
+      delta = presence.left(user);
+    } else {
+      delta = presence.changed(user, status);
+    }
+    rebuildUserList();
+    
+    ServerMessage msg = new ServerMessage(WireProtocol.PRESENCE, delta); //encoded once for everyone
+    ServerMessage list = new ServerMessage(WireProtocol.USER_LIST, userList);
+    
+    for (ConnectionHandler client:clients) {
+      if (client == subject || !client.isLoggedIn()) {
+        continue;
+      }
+      
+      if (client.presenceDeltas) {
+        client.send(msg);
+      } else {
+        client.sendUserList(list);
+      }
+    }
+  }
+  
+  //***** What other nodes of the cluster send (see ClusterNode)
+  
+  /**
+   * deliverRemote
+   * delivers a message from a user on another node to the local clients it is for
+   * @param type - ServerMessage type
+   * @param target - "*" for everyone, "#room" for a room's members, otherwise the username of the recipient
+   * @param from - user who sent it (empty for notices)
+   * @param line - message as it is shown to users
+   */
+  public void deliverRemote (byte type, String target, String from, String line) {
+    if (target.equals("*")) {
+      if (type != WireProtocol.TEXT) {
+        journal(type, from, target, line);
+      }
+      sendToAll(new ServerMessage(type, line));
+      
+    } else if (target.startsWith("#")) {
+      Set<ConnectionHandler> members = rooms.get(target.substring(1));
+      
+      if (members != null) { //only nodes with members of the room have anything to do
+        if (type != WireProtocol.TEXT) {
+          journal(type, from, target, line);
+        }
+        sendToRoom(members, new ServerMessage(type, line));
+      }
+      
+    } else {
+      ConnectionHandler cl = users.get(target);
+      
+      if (cl != null) {
+        journal(type, from, target, line);
+        cl.send(new ServerMessage(type, line));
+      }
+    }
+  }
+  
+  /**
+   * remotePresence
+   * keeps track of a user on another node and tells the local clients about the change
+   * @param node - node the user is on
+   * @param change - '+' joined, '-' left, '~' changed status
+   * @param user - username
+   * @param status - status of the user
+   */
+  public void remotePresence (String node, char change, String user, String status) {
+    if (change == '-') {
+      if (remoteUsers.remove(user) != null) {
+        notifyPresence(user, status, '-', null);
+      }
+      return;
+    }
+    
+    String[] old = remoteUsers.put(user, new String[] {node, status});
+    
+    if (old == null) {
+      notifyPresence(user, status, '+', null);
+    } else if (!old[1].equals(status)) {
+      notifyPresence(user, status, '~', null);
+    } //else a node sending its users again after its link came back
+  }
+  
+  /**
+   * nodeDown
+   * drops every user of a node whose link was lost
+   * @param node - node that went away
+   */
+  public void nodeDown (String node) {
+    for (Map.Entry<String, String[]> remote:remoteUsers.entrySet()) {
+      if (remote.getValue()[0].equals(node) && remoteUsers.remove(remote.getKey(), remote.getValue())) {
+        notifyPresence(remote.getKey(), remote.getValue()[1], '-', null);
+        sendToAll(remote.getKey()+" has left the chat");
+      }
+    }
+  }
+  
+  /**
+   * localUsers
+   * @return every local logged in user as {username, status}
+   */
+  public ArrayList<String[]> localUsers () {
+    ArrayList<String[]> local = new ArrayList<>();
+    
+    for (ConnectionHandler client:users.values()) {
+      local.add(new String[] {client.getUser(), client.status});
+    }
+    return local;
+  }
+  
+  /**
+   * resyncPresence
+   * switches the specified client to presence deltas, first sending what changed since the version it has
+   * (or the full list if it has none, its version is from before a restart or from another node, or those changes
+   * are no longer remembered)
+   * @param cur - client asking for deltas
+   * @param from - last presence version the client has, 0 if none
+   */
+  private synchronized void resyncPresence (ConnectionHandler cur, long from) {
+    
+    ArrayList<String> deltas = presence.since(from, cur.getUser());
+    
+    if (deltas == null) {
+      cur.send(new ServerMessage(WireProtocol.PRESENCE, presence.snapshot(userList)));
+    } else {
+      for (String delta:deltas) {
+        cur.send(new ServerMessage(WireProtocol.PRESENCE, delta));
+      }
+    }
+    cur.presenceDeltas = true;
+  }
+  
+  /**
+   * ServerMessage
+   * static class used to represent a message to clients; it is encoded at most once per framing
+   * and the encoded bytes are shared by every client it is sent to
+   */
+  static class ServerMessage {
+    final byte type;
+    final String text;
+    private ByteBuffer line;
+    private ByteBuffer frame;
+    private ByteBuffer compressed;
+    private boolean compressTried;
+    private int saved;
+    
+    /**
+     * ServerMessage
+     * Constructor
+     * @param type - frame type from WireProtocol
+     * @param text - message as it is sent in the text framing
+     */
+    ServerMessage (byte type, String text) {
+      this.type = type;
+      this.text = text;
+    }
+    
+    /**
+     * encoded
+     * @param binary - true for the binary framing, false for text
+     * @return read-only buffer holding the encoded message
+     */
+    synchronized ByteBuffer encoded (boolean binary) {
+      if (!binary) {
+        if (line == null) {
+          line = encode(text);
+        }
+        return line;
+      }
+      
+      if (frame == null) {
+        frame = WireProtocol.encodeFrame(type, payload());
+      }
+      return frame;
+    }
+    
+    /**
+     * compressed
+     * compresses the frame the first time it is sent to a client that accepts compressed frames
+     * @param deflater - deflater of the calling thread
+     * @param minBytes - smallest payload worth compressing (-1 to never compress)
+     * @param metrics - where the sizes and the time taken are counted
+     * @return read-only buffer holding the compressed frame, or the plain frame if it is too small or does not shrink
+     */
+    synchronized ByteBuffer compressed (Deflater deflater, int minBytes, ServerMetrics metrics) {
+      if (!compressTried && minBytes >= 0 && text.length() >= minBytes) { //length in chars, never more than in bytes
+        compressTried = true;
+        long start = System.nanoTime();
+        compressed = WireProtocol.compressFrame(type, payload(), deflater);
+        metrics.deflate.record(System.nanoTime()-start);
+        
+        if (compressed != null) {
+          saved = encoded(true).remaining()-compressed.remaining();
+          metrics.deflateInput.add(compressed.remaining()+saved);
+          metrics.deflateOutput.add(compressed.remaining());
+        }
+      }
+      
+      if (compressed == null) {
+        return encoded(true);
+      }
+      metrics.deflateSaved.add(saved);
+      return compressed;
+    }
+    
+    /**
+     * payload
+     * @return the message as it is sent in the binary framing; broadcasts drop the asterisk since the frame type
+     *         already says what they are
+     */
+    private String payload () {
+      return (type == WireProtocol.BROADCAST) ? text.substring(1) : text;
+    }
+  }
+  
+  //splits an input message into recipient and message
+  /**
+   * ClientMessage
+   * @author Cindy Wu
+   * static class used to represent a client message as its intended recipient and the message itself
+   * (used for client input; one instance is reused for every line, and only offsets into the line are kept)
+   */
+  static class ClientMessage {
+    private String line;
+    private int recipientStart;
+    private int recipientEnd;
+    private int messageStart;
+    private int messageEnd;
+    
+    /**
+     * parse
+     * splits a string "<recipient><message>" in one pass; whitespace around the line, after the recipient
+     * and before the message is ignored, and the message runs to the last '>' (so it may contain '<' and '>')
+     * @param msg - line from the client
+     * @return true if the line was well formed, false otherwise (this message is then left unchanged)
+     */
+    boolean parse (String msg) {
+      int start = 0;
+      int end = msg.length();
+      
+      while (start < end && msg.charAt(start) <= ' ') {
+        start++;
+      }
+      while (end > start && msg.charAt(end-1) <= ' ') {
+        end--;
+      }
+      
+      if (end-start < 4 || msg.charAt(start) != '<' || msg.charAt(end-1) != '>') {
+        return false;
+      }
+      
+      int close = msg.indexOf('>', start+1); //end of the recipient
+      int open = close+1; //start of the message
+      
+      while (open < end-1 && (msg.charAt(open) <= ' ' || msg.charAt(open) == '>')) {
+        open++;
+      }
+      
+      if (open >= end-1 || msg.charAt(open) != '<') {
+        return false;
+      }
+      
+      int rEnd = close;
+      while (rEnd > start+1 && msg.charAt(rEnd-1) <= ' ') {
+        rEnd--;
+      }
+      
+      if (rEnd == start+1) { //no recipient
+        return false;
+      }
+      
+      int mStart = open+1;
+      while (mStart < end-1 && msg.charAt(mStart) <= ' ') {
+        mStart++;
+      }
+      
+      this.line = msg;
+      this.recipientStart = start+1;
+      this.recipientEnd = rEnd;
+      this.messageStart = mStart;
+      this.messageEnd = end-1;
+      return true;
+    }
+    
+    /**
+     * isRecipient
+     * @param name - recipient to compare with
+     * @return true if the recipient is the specified name
+     */
+    boolean isRecipient (String name) {
+      return (recipientEnd-recipientStart == name.length()) && line.startsWith(name, recipientStart);
+    }
+    
+    /**
+     * getRecipient
+     * @return the recipient
+     */
+    String getRecipient () {
+      return line.substring(recipientStart, recipientEnd);
+    }
+    
+    /**
+     * getMessage
+     * @return the message
+     */
+    String getMessage () {
+      return line.substring(messageStart, messageEnd);
+    }
+    
+    /**
+     * appendMessage
+     * appends the message to a builder without copying it out of the line first
+     * @param sb - builder to append to
+     * @return the builder
+     */
+    StringBuilder appendMessage (StringBuilder sb) {
+      return sb.append(line, messageStart, messageEnd);
+    }
+  }
+  
+  /**
+   * ServerOptions
+   * static class used to hold the server settings given on the command line as --name=value
+   */
+  static class ServerOptions {
+    private HashMap<String, String> values = new HashMap<>();
+    
+    /**
+     * ServerOptions
+     * Constructor - reads every "--name=value" argument ("--name" alone means true)
+     * @param args - arguments from command line
+     */
+    ServerOptions (String[] args) {
+      for (String arg:args) {
+        if (arg.startsWith("--")) {
+          int split = arg.indexOf("=");
+          
+          if (split == -1) {
+            values.put(arg.substring(2), "true");
+          } else {
+            values.put(arg.substring(2, split), arg.substring(split+1));
+          }
+        }
+      }
+    }
+    
+    /**
+     * get
+     * @param name - name of the setting
+     * @param defaultValue - value used if the setting was not given
+     * @return the value of the setting
+     */
+    String get (String name, String defaultValue) {
+      return values.getOrDefault(name, defaultValue);
+    }
+    
+    /**
+     * getInt
+     * @param name - name of the setting
+     * @param defaultValue - value used if the setting was not given
+     * @return the value of the setting as an int
+     */
+    int getInt (String name, int defaultValue) {
+      return values.containsKey(name) ? Integer.parseInt(values.get(name)) : defaultValue;
+    }
+  }
+  
+  //***** Inner class - thread for client connection
+  /**
+   * Connection Handler
+   * a runnable class (thread) for client connections; handles all the server-client communication
+   * (in nio mode it is not run as a thread; the selector loop hands it the bytes read from its channel)
+   */
+  class ConnectionHandler implements Runnable, TimingWheel.Task { 
+    
+    /**
+     * stream for network input from client (thread mode only)
+     */
+    private DataInputStream input; 
+    
+    /**
+     * keeps track of client socket
+     */
+    private Socket client;
+    
+    /**
+     * channel for this client; blocking in thread mode, non-blocking in nio mode
+     */
+    private SocketChannel channel;
+    
+    /**
+     * where messages to this client are written; the channel, or an in-memory sink for benchmarks
+     */
+    private GatheringByteChannel sink;
+    
+    /**
+     * keeps track of whether writes block (thread mode) or not (nio mode)
+     */
+    private boolean blocking;
+    
+    /**
+     * registration of the channel with the server's selector (nio mode only)
+     */
+    private SelectionKey key;
+    
+    /**
+     * username the client asked for and the one another node granted, while the client waits for it (nio mode only)
+     */
+    private String requestedName;
+    private String grantedName;
+    
+    /**
+     * bytes read from the channel that have not been handled yet (nio mode only); grown while a frame bigger than it
+     * arrives, and back to READ_BUFFER once that is handled
+     */
+    private ByteBuffer readBuffer;
+    private static final int READ_BUFFER = 8192;
+    
+    /**
+     * bytes of a line or frame that has only been partly received
+     */
+    private ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+    
+    /**
+     * keeps track of whether this client switched to the binary framing
+     */
+    private volatile boolean binary = false;
+    
+    /**
+     * keeps track of whether this client accepts compressed frames
+     */
+    private volatile boolean deflate = false;
+    
+    /**
+     * encoded messages waiting to be written to this client (buffers may be shared with other clients)
+     */
+    private OutboundQueue<ByteBuffer> outbound = new OutboundQueue<>(queueSize, slowPolicy, metrics.droppedSends);
+    
+    /**
+     * messages taken off the queue to be written with one gathering write; batch[batchStart..batchEnd) is left to write
+     */
+    private ByteBuffer[] batch = new ByteBuffer[batchNanos > 0 ? 128 : 16];
+    private int batchStart = 0;
+    private int batchEnd = 0;
+    
+    /**
+     * rate limits on messages to everyone or a room, on whispers, and on status changes and other <?> commands
+     */
+    private TokenBucket broadcastLimit = newLimit("broadcast", 20, 40);
+    private TokenBucket whisperLimit = newLimit("whisper", 20, 40);
+    private TokenBucket statusLimit = newLimit("status", 5, 10);
+    
+    /**
+     * line or frame read while over the rate limit; handled once reading resumes (nio mode only)
+     */
+    private String heldInput;
+    private byte heldType;
+    
+    /**
+     * when reading from this client resumes while it is throttled, and whether it is (nio mode only)
+     */
+    private long resumeAt;
+    private volatile boolean readPaused = false;
+    
+    /**
+     * bytes queued since the last write, whether the client is waiting in flushing, and when its window ends (nio mode only)
+     */
+    private int heldBytes = 0;
+    private boolean flushPending = false;
+    private volatile long flushDeadline;
+    
+    /**
+     * client number
+     */
+    private int clientNum;
+    
+    /**
+     * keeps track if thread should continue running
+     */
+    private volatile boolean running; 
+    
+    /**
+     * keeps track of whether the connection has been closed
+     */
+    private boolean closed = false;
+    
+    /**
+     * keeps track of whether the connection has been dropped for being slow or failing
+     */
+    private boolean aborted = false;
+    
+    /**
+     * client username
+     */
+    private String user;
+    
+    /**
+     * keeps track of whether client has logged in or not
+     */
+    private volatile boolean loggedIn = false;
+    
+    /**
+     * keeps track of client's status (offline, online, idle, do not disturb)
+     */
+    private volatile String status = "Offline"; 
+    
+    /**
+     * parser reused for every message from this client
+     */
+    private ClientMessage clientMsg = new ClientMessage();
+    
+    /**
+     * keeps track of whether client asked for presence deltas instead of full user lists
+     */
+    private boolean presenceDeltas = false;
+    
+    /**
+     * names of the rooms this client is in
+     */
+    private Set<String> rooms = ConcurrentHashMap.newKeySet();
+    
+    /**
+     * time of client's last input to check for inactivity (read by the thread advancing the timing wheel)
+     */
+    private volatile long timeLastActive;
+    
+    /**
+     * longest line a client can send before it is disconnected (constant; 64 KB)
+     */
+    private final int MAX_LINE = 65536;
+    
+    /** ConnectionHandler
+      * Constructor
+      * @param the socket belonging to this client connection
+      */    
+    ConnectionHandler(Socket s, int clientNum) { 
+      this.client = s;  //constructor assigns client to this   
+      this.channel = s.getChannel();
+      this.sink = channel;
+      this.blocking = true;
+      this.clientNum = clientNum;
+      
+      try {  //assign all connections to client
+        
+        //read byte by byte from a small buffer so the framing can switch right after any line; keeps idle clients small
+        this.input = new DataInputStream(new BufferedInputStream(client.getInputStream(), 512));
+        
+        timeLastActive = System.currentTimeMillis();
+        
+      }catch(IOException e) {
+        log.error(clientNum, "Could not set up connection", e);
+      }            
+      running=true;
+    } //end of constructor
+    
+    /** ConnectionHandler
+      * Constructor (nio mode)
+      * @param channel - the non-blocking channel belonging to this client connection
+      * @param clientNum - client number
+      */    
+    ConnectionHandler(SocketChannel channel, int clientNum) { 
+      this.channel = channel;
+      this.sink = channel;
+      this.blocking = false;
+      this.clientNum = clientNum;
+      this.readBuffer = ByteBuffer.allocate(READ_BUFFER);
+      this.timeLastActive = System.currentTimeMillis();
+      running=true;
+    } //end of constructor
+    
+    /** ConnectionHandler
+      * Constructor (no socket; see addClient)
+      * @param sink - where messages to this client are written
+      * @param clientNum - client number
+      */    
+    ConnectionHandler(GatheringByteChannel sink, int clientNum) { 
+      this.sink = sink;
+      this.blocking = true;
+      this.clientNum = clientNum;
+      this.timeLastActive = System.currentTimeMillis();
+      running=true;
+    } //end of constructor
+    
+    /** getUser
+      * returns the username for this client
+      * @return user - client's username
+      */
+    public String getUser() {
+      return this.user;
+    }
+    
+    /** isLoggedIn
+      * @return true if this client has logged in, false otherwise
+      */
+    public boolean isLoggedIn() {
+      return this.loggedIn;
+    }
+    
+    /** getDeadline
+      * @return time at which this client is disconnected if it stays inactive
+      */
+    public long getDeadline() {
+      return this.timeLastActive+(loggedIn ? idleTimeout : loginTimeout);
+    }
+    
+    /** isCancelled
+      * @return true once this client no longer needs a timeout
+      */
+    public boolean isCancelled() {
+      return !this.running;
+    }
+    
+    /** expire
+      * disconnects this client for inactivity
+      */
+    public void expire() {
+      if (!running) {
+        return; //on the wheel twice after logging in (see login)
+      }
+      timedOut();
+      
+      if (!blocking) {
+        closeConnection(); //already on the selector thread
+        return;
+      }
+      
+      try { //wakes up the client's thread, which closes the connection when it sees the end of input
+        client.shutdownInput();
+      } catch (IOException e) {
+        log.error(clientNum, "Failed to close socket", e);
+      }
+    }
+    
+    /** send
+      * queues the specified message for this client
+      * @param message - message to send to client
+      */
+    public void send(String message) {
+      enqueue(new ServerMessage(WireProtocol.TEXT, message), false);
+    }
+    
+    /** send
+      * queues a message for this client
+      * @param msg - message to send; its encoded bytes may be shared with other clients
+      */
+    public void send(ServerMessage msg) {
+      enqueue(msg, false);
+    }
+    
+    /** sendUserList
+      * queues a user list for this client; under the coalesce policy it replaces any user list still waiting
+      * @param userList - user list to send to client
+      */
+    public void sendUserList(String userList) {
+      sendUserList(new ServerMessage(WireProtocol.USER_LIST, userList));
+    }
+    
+    /** sendUserList
+      * queues a user list that is shared with other clients
+      * @param userList - user list message
+      */
+    public void sendUserList(ServerMessage userList) {
+      enqueue(userList, true);
+    }
+    
+    /** enqueue
+      * adds a message to the outbound queue in this client's framing and makes sure a writer is draining it
+      * @param msg - message to send
+      * @param replaceable - true if a newer message of the same kind makes this one unnecessary
+      */
+    private void enqueue(ServerMessage msg, boolean replaceable) {
+      if (queue(msg, replaceable)) {
+        startWriting();
+      }
+    }
+    
+    /** send
+      * sends several messages with one write (unless the queue fills up first)
+      * @param msgs - messages to send, in order
+      */
+    public void send(ArrayList<ServerMessage> msgs) {
+      boolean write = false;
+      
+      for (ServerMessage msg:msgs) {
+        write |= queue(msg, false);
+      }
+      if (write) {
+        startWriting();
+      }
+    }
+    
+    /** queue
+      * adds a message to the outbound queue in this client's framing
+      * @param msg - message to send
+      * @param replaceable - true if a newer message of the same kind makes this one unnecessary
+      * @return true if it should be written now, false if it is held back for the batch window or the client is gone
+      */
+    private boolean queue(ServerMessage msg, boolean replaceable) {
+      boolean accepted;
+      
+      boolean hold = false;
+      
+      synchronized (this) { //the framing cannot change between encoding and queueing
+        if (closed) {
+          return false;
+        }
+        ByteBuffer encoded = deflate ? msg.compressed(deflaters.get(), deflateMinBytes, metrics) : msg.encoded(binary);
+        accepted = outbound.offer(encoded, replaceable);
+        
+        if (!blocking && batchNanos > 0 && accepted) { //hold it back unless enough is already waiting
+          heldBytes += encoded.remaining();
+          hold = heldBytes < batchBytes;
+          
+          if (hold && !flushPending) {
+            flushPending = true;
+            flushDeadline = System.nanoTime()+batchNanos;
+            flushing.add(this);
+            
+            if (Thread.currentThread() != selectorThread) {
+              selector.wakeup(); //so the selector loop does not sleep past the window
+            }
+          }
+        }
+      }
+      
+      if (!accepted) { //queue is full and the policy is to disconnect
+        metrics.slowDisconnects.increment();
+        abort("Client is too slow; disconnecting client");
+        return false;
+      }
+      return !hold;
+    }
+    
+    /** startWriting
+      * makes sure what is queued is being written to this client
+      */
+    private void startWriting() {
+      if (!blocking) {
+        writeToChannel();
+      } else if (outbound.claimWriter()) {
+        writers.execute(this::drain);
+      }
+    }
+    
+    /** switchToBinary
+      * acknowledges a request for the binary framing; everything after the acknowledgement is sent as frames
+      */
+    private synchronized void switchToBinary() {
+      send(WireProtocol.BINARY_ACK);
+      binary = true;
+    }
+    
+    /** fillBatch
+      * starts a new batch with the specified message followed by whatever else is queued
+      * @param first - first message of the batch, or null if the queue was empty
+      * @return true if the batch has something to write
+      */
+    private boolean fillBatch(ByteBuffer first) {
+      if (first == null) { //in thread mode the writer claim is already given up, so another writer may own the batch
+        return false;
+      }
+      
+      batchStart = 0;
+      batchEnd = 0;
+      ByteBuffer frame = first;
+      int bytes = 0;
+      
+      while (frame != null) {
+        batch[batchEnd++] = frame.duplicate(); //own position, shared bytes
+        bytes += frame.remaining();
+        
+        if (batchEnd == batch.length || (batchNanos > 0 && bytes >= batchBytes)) {
+          break;
+        }
+        frame = outbound.poll();
+      }
+      return batchEnd > 0;
+    }
+    
+    /** writeBatch
+      * writes the rest of the batch with gathering writes
+      * @return true if the whole batch was written, false if the socket is full (nio mode)
+      */
+    private boolean writeBatch() throws IOException {
+      while (batchStart < batchEnd) {
+        long written = sink.write(batch, batchStart, batchEnd-batchStart);
+        metrics.socketWrites.increment();
+        
+        while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+          batch[batchStart++] = null; //done with this message
+        }
+        
+        if (written == 0 && !blocking) {
+          return false;
+        }
+      }
+      return true;
+    }
+    
+    /** drain
+      * writes queued messages to the socket until the queue is empty (thread mode)
+      */
+    private void drain() {
+      try {
+        
+        while (fillBatch(outbound.pollOrRelease())) {
+          writeBatch();
+        }
+        
+      } catch (IOException e) {
+        outbound.clear();
+        
+        if (!closed) {
+          abort("Failed to send msg");
+        }
+      }
+    }
+    
+    /** writeToChannel
+      * writes as many queued messages as the socket will take without blocking (nio mode)
+      */
+    synchronized void writeToChannel() {
+      heldBytes = 0;
+      
+      try {
+        
+        while (batchStart < batchEnd || fillBatch(outbound.poll())) {
+          if (!writeBatch()) {
+            break; //socket is full; the rest is written once the selector says it is writable
+          }
+        }
+        
+        if (key.isValid()) {
+          key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (batchStart == batchEnd ? 0 : SelectionKey.OP_WRITE));
+        }
+        
+      } catch (IOException e) {
+        abort("Failed to send msg");
+      }
+    }
+    
+    /** flush
+      * writes what was held back once the batching window has ended (nio mode, selector thread)
+      */
+    synchronized void flush() {
+      flushPending = false;
+      
+      if (!closed) {
+        writeToChannel();
+      }
+    }
+    
+    /** abort
+      * drops a client that cannot keep up or whose socket failed; safe to call while sendToAll is looping over clients
+      * @param reason - reason printed to the console
+      */
+    private synchronized void abort(String reason) {
+      if (aborted) {
+        return;
+      }
+      aborted = true;
+      log.warn(clientNum, reason);
+      
+      if (blocking) {
+        running = false;
+        
+        try {
+          sink.close(); //the blocked reader fails and closes the connection
+        } catch (IOException e) {
+          log.error(clientNum, "Failed to close socket", e);
+        }
+      } else {
+        running = false;
+        closing.add(this); //closed by the selector loop
+        selector.wakeup(); //which may be waiting on nothing else
+      }
+    }
+    
+    /** readFromChannel
+      * reads the bytes that have arrived and handles every complete line (nio mode)
+      */
+    void readFromChannel() {
+      try {
+        
+        if (channel.read(readBuffer) == -1) { //client closed the connection
+          running = false;
+        }
+        readInput();
+        
+      } catch (IOException e) { 
+        log.warn(clientNum, "Failed to receive msg");
+        running = false;
+      }
+      
+      if (!running) {
+        closeConnection();
+      }
+    }
+    
+    /** readInput
+      * handles the lines or frames in what has been read, stopping early if the client goes over its rate limit
+      * (nio mode; the bytes not handled yet stay in the read buffer)
+      */
+    private void readInput() {
+      readBuffer.flip();
+      
+      while (readBuffer.hasRemaining() && running && !readPaused) {
+        if (binary) {
+          if (!readFrame()) {
+            break; //the rest of the frame has not arrived yet
+          }
+          continue;
+        }
+        
+        byte b = readBuffer.get();
+        
+        if (b == '\n') { //end of line
+          byte[] line = partialLine.toByteArray();
+          int length = line.length;
+          
+          if (length > 0 && line[length-1] == '\r') {
+            length--;
+          }
+          partialLine.reset();
+          
+          received((byte)0, new String(line, 0, length, CHARSET));
+          
+        } else if (partialLine.size() < MAX_LINE) {
+          partialLine.write(b);
+        } else {
+          log.warn(clientNum, "Line too long; disconnecting client");
+          running = false;
+        }
+      }
+      
+      readBuffer.compact(); //keeps what was not handled while throttled, or the start of a frame
+      
+      if (readBuffer.position() == 0 && readBuffer.capacity() > READ_BUFFER) { //done with a big frame
+        readBuffer = ByteBuffer.allocate(READ_BUFFER);
+      }
+    }
+    
+    /** received
+      * handles a line or frame from the client now, or once its rate limit lets it send again; in thread mode the
+      * thread waits, in nio mode the client is not read from meanwhile, so either way its TCP window fills up
+      * @param type - frame type, or 0 for a line
+      * @param input - line, or frame payload
+      */
+    private void received(byte type, String input) {
+      long wait = throttle(type, input);
+      
+      if (wait > 0 && !blocking) {
+        heldInput = input;
+        heldType = type;
+        pauseReading(wait);
+        return;
+      }
+      
+      if (wait > 0) {
+        long resume = System.nanoTime()+wait;
+        while (running && (wait = resume-System.nanoTime()) > 0) {
+          LockSupport.parkNanos(this, wait);
+        }
+      }
+      
+      if (type == 0) {
+        handleLine(input);
+      } else {
+        handleFrame(type, input);
+      }
+    }
+    
+    /** throttle
+      * takes a token from the rate limit for the kind of command the input is
+      * @param type - frame type, or 0 for a line
+      * @param input - line, or frame payload
+      * @return time in ns before the command may be handled
+      */
+    private long throttle(byte type, String input) {
+      if (!loggedIn) {
+        return 0; //the username
       }
       
-    }catch(Exception e) { 
+      TokenBucket limit;
+      LongAdder count;
       
-      System.out.println("Error accepting connection");
-      //close all and quit
-      try {
-        client.close();
-      }catch (Exception e1) { 
-        System.out.println("Failed to close socket");
+      if (type == WireProtocol.CONTROL || (type == 0 && input.startsWith("<?>"))) {
+        limit = statusLimit;
+        count = metrics.throttledStatus;
+      } else if (type == WireProtocol.BROADCAST || input.startsWith("<*>") || input.startsWith(type == 0 ? "<#" : "#")) {
+        limit = broadcastLimit;
+        count = metrics.throttledBroadcasts;
+      } else {
+        limit = whisperLimit;
+        count = metrics.throttledWhispers;
       }
-      System.exit(-1);
+      
+      long wait = (limit == null) ? 0 : limit.reserve(System.nanoTime());
+      if (wait > 0) {
+        count.increment();
+      }
+      return wait;
     }
-  }
-  
-  /**
-   * getUserList
-   * returns a string of the other user's and their status to the specified client
-   * @param cur - current client that is receiving a list of the other online clients
-   * @return A string containing the user names and status' of the other clients
-   */
-  private synchronized String getUserList (ConnectionHandler cur) {
     
-    ArrayList<ConnectionHandler> clients = this.clients;
+    /** stopReading
+      * stops reading from the client for good, e.g. while the server shuts down, or until claimed() is called
+      * (nio mode, selector thread)
+      */
+    synchronized void stopReading() {
+      readPaused = true;
+      
+      if (key.isValid()) {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+      }
+    }
     
-    String userList = "";
+    /** isDrained
+      * @return true if nothing is waiting to be written to this client
+      */
+    synchronized boolean isDrained() {
+      return closed || (batchStart == batchEnd && outbound.size() == 0);
+    }
     
-    for (ConnectionHandler client:clients) {
-      if ((!client.equals(cur)) && client.isLoggedIn()) {
-        userList += client.getUser()+"|"+client.status+"/";
+    /** pauseReading
+      * stops reading from the client until its rate limit lets it send again (nio mode, selector thread)
+      * @param wait - time in ns before reading resumes
+      */
+    private synchronized void pauseReading(long wait) {
+      readPaused = true;
+      resumeAt = System.nanoTime()+wait;
+      throttled.add(this);
+      
+      if (key.isValid()) {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
       }
     }
-    return userList;
-  }
-  
-  /**
-   * sendToAll
-   * sends the specified message to all clients 
-   */
-  private synchronized void sendToAll (String msg) {
-    
-    ArrayList<ConnectionHandler> clients = this.clients;
     
-    for (ConnectionHandler client:clients) {
+    /** resumeReading
+      * handles the input held back while throttled, then what else was already read, then reads again (nio mode, selector thread)
+      */
+    void resumeReading() {
+      if (closed) {
+        return;
+      }
       
-      try {  
-        //send message to specific client
-        client.send(msg);
+      synchronized (this) {
+        readPaused = false;
+        
+        if (key.isValid()) {
+          key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
       }
-      catch (Exception e) {  
-        System.out.println("Could not send message");
-        e.printStackTrace();
+      
+      if (heldType == 0) {
+        handleLine(heldInput);
+      } else {
+        handleFrame(heldType, heldInput);
+      }
+      heldInput = null;
+      
+      readInput();
+      
+      if (!running) {
+        closeConnection();
       }
     }
-  }
-  
-  //splits an input message into recipient and message
-  /**
-   * ClientMessage
-   * @author Cindy Wu
-   * static class used to represent a client message as its intended recipient and the message itself
-   * (used for client input)
-   */
-  static class ClientMessage {
-    String recipient;
-    String message;
     
-    /**
-     * ClientMessage
-     * Constructor - splits a string "<recipient><message>"
-     * @param msg
-     */
-    ClientMessage (String msg) {
-      String[] messages = msg.trim().replaceFirst("^<","").replaceFirst(">$","").split("\\s*>*<\\s*");
-      this.recipient = messages[0];
-      this.message = messages[1];
+    /** readFrame
+      * handles the next frame in the read buffer once all of it has arrived; the header is read in place and the
+      * payload decoded straight out of the buffer, so no byte is looked at twice (nio mode)
+      * @return false if the rest of the frame has not arrived yet (or the frame is too long)
+      */
+    private boolean readFrame() {
+      if (readBuffer.remaining() < WireProtocol.HEADER_LENGTH) {
+        return false;
+      }
+      
+      int start = readBuffer.position();
+      byte type = readBuffer.get(start);
+      int length = readBuffer.getInt(start+1);
+      
+      if (length < 0 || length > MAX_LINE) {
+        log.warn(clientNum, "Frame too long; disconnecting client");
+        running = false;
+        return false;
+      }
+      
+      if (readBuffer.remaining() < WireProtocol.HEADER_LENGTH+length) {
+        if (WireProtocol.HEADER_LENGTH+length > readBuffer.capacity()) { //make room for the whole frame
+          ByteBuffer bigger = ByteBuffer.allocate(WireProtocol.HEADER_LENGTH+length);
+          bigger.put(readBuffer).flip();
+          readBuffer = bigger;
+        }
+        return false;
+      }
+      
+      String payload = new String(readBuffer.array(), start+WireProtocol.HEADER_LENGTH, length, WireProtocol.UTF8);
+      readBuffer.position(start+WireProtocol.HEADER_LENGTH+length);
+      received(type, payload);
+      return true;
     }
-  }
-  
-  //***** Inner class - thread for client connection
-  /**
-   * Connection Handler
-   * a runnable class (thread) for client connections; handles all the server-client communication
-   */
-  class ConnectionHandler implements Runnable { 
-    
-    /**
-     * assign printwriter to network stream
-     */
-    private PrintWriter output;
-    
-    /**
-     * stream for network input from client
-     */
-    private BufferedReader input; 
-    
-    /**
-     * keeps track of client socket
-     */
-    private Socket client;
     
-    /**
-     * client number
-     */
-    private int clientNum;
+    /** handleLine
+      * handles one line of input from the client; the first line is the username
+      * @param line - line received from the client
+      */
+    void handleLine(String line) {
+      try {
+        if (!loggedIn) {
+          login(line);
+        } else {
+          handleMessage(line);
+        }
+      } catch (RuntimeException e) {
+        log.error(clientNum, "Could not handle msg", e);
+      }
+      this.timeLastActive = System.currentTimeMillis();
+    }
     
-    /**
-     * keeps track if thread should continue running
-     */
-    private boolean running; 
+    /** handleFrame
+      * handles one frame of input from a client using the binary framing
+      * @param type - frame type from WireProtocol
+      * @param payload - frame payload
+      */
+    void handleFrame(byte type, String payload) {
+      long start = System.nanoTime();
+      
+      try {
+        if (type == WireProtocol.BROADCAST) {
+          broadcast(this.user, "*"+this.user+": "+payload);
+          
+        } else if (type == WireProtocol.WHISPER && payload.indexOf('\0') != -1) { //recipient \0 message
+          String recipient = payload.substring(0, payload.indexOf('\0'));
+          String message = payload.substring(payload.indexOf('\0')+1);
+          
+          if (recipient.startsWith("#")) { //room \0 message
+            sendToRoom(recipient.substring(1), "*["+recipient+"] "+this.user+": "+message);
+          } else {
+            whisper(recipient, "[Whisper To "+recipient+"] "+this.user+": "+message);
+          }
+          
+        } else if (type == WireProtocol.CONTROL) {
+          handleControl(payload);
+          
+        } else {
+          log.debug(clientNum, "Malformed message ignored");
+        }
+      } catch (RuntimeException e) {
+        log.error(clientNum, "Could not handle msg", e);
+      }
+      metrics.route.record(System.nanoTime()-start);
+      this.timeLastActive = System.currentTimeMillis();
+    }
     
-    /**
-     * client username
-     */
-    private String user;
+    /** login
+      * logs this client in with the specified username; in nio mode, if the name belongs to another node of the
+      * cluster, the client is not read from until that node answers and the selector loop calls claimed()
+      * @param name - username sent by the client
+      */
+    private void login(String name) {
+      
+      if (!isValidName(name)) { //a raw client could otherwise pass itself off as a server notice
+        this.send("Username must consist of at least one character and cannot contain the following characters: "
+                    +"/ : * ? < > | #");
+        log.info(clientNum, "Refused an invalid username");
+        running = false;
+        return;
+      }
+      
+      //get client username, adding a number if it is already taken
+      if (cluster == null || blocking) {
+        finishLogin(name, reserveUser(name, this));
+        return;
+      }
+      
+      CompletableFuture<String> granted = reserveUserLater(name, this);
+      if (granted.isDone()) { //this node owns the name
+        finishLogin(name, granted.join());
+        return;
+      }
+      
+      requestedName = name;
+      stopReading();
+      granted.thenAccept(user -> {
+        grantedName = user; //seen by the selector thread through the queue
+        claimed.add(this);
+        selector.wakeup();
+      });
+    }
     
-    /**
-     * keeps track of whether client has logged in or not
-     */
-    private boolean loggedIn = false;
+    /** isValidName
+      * @param name - username sent by the client
+      * @return true if the name is not blank and has none of NAME_RESERVED or control characters in it
+      */
+    private boolean isValidName(String name) {
+      if (name.trim().isEmpty()) {
+        return false;
+      }
+      
+      for (int i = 0; i < name.length(); i++) {
+        char c = name.charAt(i);
+        if (NAME_RESERVED.indexOf(c) != -1 || Character.isISOControl(c)) {
+          return false;
+        }
+      }
+      return true;
+    }
     
-    /**
-     * keeps track of client's status (offline, online, idle, do not disturb)
-     */
-    private String status = "Offline"; 
+    /** claimed
+      * logs the client in once another node has granted its username, then reads on (nio mode, selector thread)
+      */
+    void claimed() {
+      if (closed || stopping) { //gone (or going) while waiting; nothing was announced
+        releaseUser(grantedName, this);
+        return;
+      }
+      
+      synchronized (this) {
+        readPaused = false;
+        
+        if (key.isValid()) {
+          key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+      }
+      
+      finishLogin(requestedName, grantedName);
+      readInput(); //what the client sent meanwhile
+      
+      if (!running) {
+        closeConnection();
+      }
+    }
     
-    /**
-     * time of client's last input to check for inactivity
-     */
-    private long timeLastActive;
+    /** finishLogin
+      * tells the client, and everyone else, that it is logged in
+      * @param name - username the client asked for
+      * @param granted - username it got
+      */
+    private void finishLogin(String name, String granted) {
+      this.user = granted;
+      
+      if (!this.user.equals(name)) { //lets the client know which name to leave out of user lists
+        this.send("Username <"+name+"> is taken; you are logged in as <"+this.user+">");
+      }
+      
+      loggedIn = true;
+      metrics.logins.increment();
+      
+      if (idleTimeout < loginTimeout) {
+        timeouts.schedule(this); //the deadline moved earlier; moving it later needs nothing
+      }
+      
+      log.info(clientNum, "User <" + user +"> has logged in");
+      this.status = "Online";
+      
+      //send back list of all online users and what was said recently, then tell everyone else about this one
+      this.sendUserList(getUserList());
+      replayHistory(this);
+      deliverMail(this);
+      sendPresence(this, '+');
+      
+      announce(this.user + " has entered the chat");
+    }
     
-    /**
-     * the amount of time a client has of inactivity before it disconnects (constant; 10 mins)
-     */
-    private final long TIMEOUT = 60000;
+    /** handleMessage
+      * handles a message from a logged in client
+      * @param msg - message in the form "<recipient><message>"
+      */
+    private void handleMessage(String msg) {
+      long start = System.nanoTime();
+      boolean parsed = clientMsg.parse(msg);
+      long routeStart = System.nanoTime();
+      metrics.parse.record(routeStart-start);
+      
+      if (!parsed) {
+        log.debug(clientNum, "Malformed message ignored");
+        return;
+      }
+      
+      if (clientMsg.isRecipient("?")) { 
+        handleControl(clientMsg.getMessage());
+        
+      } else if (clientMsg.isRecipient("*")) { //send message to everyone -- <*><message>
+        //tagged with asterisk to indicate global message
+        broadcast(this.user, clientMsg.appendMessage(new StringBuilder("*").append(this.user).append(": ")).toString());
+        
+      } else if (clientMsg.getRecipient().startsWith("#")) { //message to a room -- <#room><message>
+        String recipient = clientMsg.getRecipient();
+        sendToRoom(recipient.substring(1), clientMsg.appendMessage(
+          new StringBuilder("*[").append(recipient).append("] ").append(this.user).append(": ")).toString());
+        
+      } else { //direct message -- <recepientUser><message>
+        String recipient = clientMsg.getRecipient();
+        whisper(recipient, clientMsg.appendMessage(
+          new StringBuilder("[Whisper To ").append(recipient).append("] ").append(this.user).append(": ")).toString());
+      }
+      metrics.route.record(System.nanoTime()-routeStart);
+    }
     
-    /** ConnectionHandler
-      * Constructor
-      * @param the socket belonging to this client connection
-      */    
-    ConnectionHandler(Socket s, int clientNum) { 
-      this.client = s;  //constructor assigns client to this   
-      this.clientNum = clientNum;
+    /** handleControl
+      * handles a message to the server -- <?><message>
+      * @param message - status or command
+      */
+    private void handleControl(String message) {
+      if (log.isEnabled(ServerLog.Level.DEBUG)) { //per-message logging is off unless asked for
+        log.debug(clientNum, "message to server: "+message);
+      }
+      metrics.statusMessages.increment();
       
-      try {  //assign all connections to client
+      if (message.equals("quit")) {//if client quits -- <?><quit>
+        running = false;
+        status = "Offline"; //removed from the list and everyone is told once the connection closes
         
-        this.output = new PrintWriter(client.getOutputStream());
-        InputStreamReader stream = new InputStreamReader(client.getInputStream());
-        this.input = new BufferedReader(stream);
+      } else if (message.equals("Online") || message.equals("Idle") || message.equals("Do Not Disturb")) { //status change
         
-        timeLastActive = System.currentTimeMillis();
+        if (!message.equals(status)) {
+          status = message;
+          sendPresence(this, '~'); //update status to everyone
+        }
         
-      }catch(IOException e) {
-        e.printStackTrace();        
-      }            
-      running=true;
-    } //end of constructor
+      } else if (PRESENCE_REQUEST.matcher(message).matches()) { //client wants deltas -- <?><presence [version]>
+        long from = 0;
+        try {
+          from = (message.length() > 9) ? Long.parseLong(message.substring(9)) : 0; //the version after the space
+        } catch (NumberFormatException e) { //too big to be any version; gets the full list
+        }
+        resyncPresence(this, from);
+        
+      } else if (message.equals(WireProtocol.BINARY_REQUEST) && !binary) { //client wants frames -- <?><binary>
+        switchToBinary();
+        
+      } else if (message.equals(WireProtocol.DEFLATE_REQUEST) && binary) { //client accepts compressed frames -- <?><deflate>
+        deflate = true;
+        
+      } else if (message.startsWith("join ")) { //join (or create) a room -- <?><join room>
+        joinRoom(this, message.substring(5).trim());
+        
+      } else if (message.startsWith("leave ")) { //leave a room -- <?><leave room>
+        leaveRoom(this, message.substring(6).trim(), true);
+      }
+    }
     
-    /** getUser
-      * returns the username for this client
-      * @return user - client's username
+    /** sendToRoom
+      * sends a message from this client to everyone in a room it is in
+      * @param room - name of the room
+      * @param line - message as it is shown to the room ("*[#room] user: message")
       */
-    public String getUser() {
-      return this.user;
+    private void sendToRoom(String room, String line) {
+      Set<ConnectionHandler> members = ChatServer.this.rooms.get(room);
+      
+      if (members == null || !members.contains(this)) {
+        this.send("You are not in #"+room+"; join it with <?><join "+room+">");
+        return;
+      }
+      metrics.roomMessages.increment();
+      journal(WireProtocol.BROADCAST, this.user, "#"+room, line);
+      ChatServer.this.sendToRoom(members, new ServerMessage(WireProtocol.BROADCAST, line));
+      
+      if (cluster != null) { //members on other nodes
+        cluster.relay(WireProtocol.BROADCAST, "#"+room, this.user, line);
+      }
     }
     
-    /** isLoggedIn
-      * @return true if this client has logged in, false otherwise
+    /** whisper
+      * sends a direct message to the recipient and echoes it back to this client
+      * @param recipient - username of the recipient
+      * @param line - whisper as it is shown to both users
       */
-    public boolean isLoggedIn() {
-      return this.loggedIn;
+    private void whisper(String recipient, String line) {
+      ConnectionHandler cl = users.get(recipient);
+      metrics.whispers.increment();
+      
+      if (cl != null) { //only sends to this user and recipient
+        journal(WireProtocol.WHISPER, this.user, recipient, line);
+        ServerMessage msg = new ServerMessage(WireProtocol.WHISPER, line);
+        cl.send(msg);
+        this.send(msg);
+        
+      } else if (cluster != null && remoteUsers.containsKey(recipient)) { //recipient is on another node
+        journal(WireProtocol.WHISPER, this.user, recipient, line);
+        cluster.relayTo(remoteUsers.get(recipient)[0], WireProtocol.WHISPER, recipient, this.user, line);
+        this.send(new ServerMessage(WireProtocol.WHISPER, line));
+        
+      } else if (mailboxes == null || !mailboxes.isKnown(recipient)) { //nobody by that name has ever logged in
+        this.send("User <"+recipient+"> is not online");
+        
+      } else { //kept until the recipient logs in
+        boolean kept;
+        try {
+          kept = mailboxes.put(this.user, recipient, line);
+        } catch (IOException e) {
+          log.warn(clientNum, "Could not keep a whisper for <"+recipient+">: "+e.getMessage());
+          kept = false;
+        }
+        
+        if (kept) {
+          metrics.mailboxStored.increment();
+          this.send(new ServerMessage(WireProtocol.WHISPER, line));
+          this.send("User <"+recipient+"> is not online; the whisper will be delivered when <"+recipient+"> logs in");
+        } else {
+          metrics.mailboxRefused.increment();
+          this.send("User <"+recipient+"> is not online and cannot be sent more whispers for now");
+        }
+      }
     }
     
-    /** send
-      * sends the specified message to this client
-      * @param message - message to send to client
+    /** timedOut
+      * tells the client it is being disconnected due to inactivity
       */
-    public synchronized void send(String message) {
-      output.println(message);
-      output.flush();
+    private void timedOut() {
+      running = false;
+      metrics.timeouts.increment();
+      
+      if (!loggedIn) {
+        status = "Offline";
+        log.info(clientNum, "Failed to login due to inactivity.");
+        
+        this.send("You have been disconnected due to inactivity.");
+        
+      } else {
+        log.info(clientNum, "User <"+this.user+"> is inactive; disconnecting user");
+        
+        this.send("You have been disconnected due to inactivity");
+      }
     }
     
     /** run
-      * executed on start of thread
+      * executed on start of thread; blocks on the socket until a line arrives
       */
     public void run() {  
       
-      //wait for client to login
-      while(!loggedIn) {
-        try {
+      try {
+        
+        while(running) {  // loop until the client closes the connection
           
-          if (input.ready()) { //check for an incoming message
-            
-            //get client username
-            this.user = input.readLine();
-            
-            //check for duplicate usernames
-            int dupNum = 0;
+          if (binary) {
+            WireProtocol.Frame frame = WireProtocol.readFrame(input, MAX_LINE);
             
-            for (ConnectionHandler cl:clients) {
-              if ((!cl.equals(this)) && (cl.getUser().equals(this.user))) {
-                dupNum++;
-              }
-            }
-            
-            if (dupNum>0) {
-              this.user = this.user+"("+dupNum+")";
-            }
-            
-            loggedIn = true;
-            
-            System.out.println("[client#"+this.clientNum+"] User <" + user +"> has logged in");
-            this.status = "Online";
-            
-            //send back list of all online users -- each name is separated with a space
-            for (ConnectionHandler cl:clients) {
-              cl.send(getUserList(cl));
+            if (frame == null) {
+              break;
             }
+            received(frame.type, frame.payload);
             
-            sendToAll(this.user + " has entered the chat");
-            
-            this.timeLastActive = System.currentTimeMillis();
+          } else {
+            String msg = WireProtocol.readLine(input, partialLine, CHARSET, MAX_LINE);
             
-          } else { //if there are no messages, check for timeout
-            
-            if (System.currentTimeMillis()-this.timeLastActive>=this.TIMEOUT) {
-              running = false;
-              status = "Offline";
-              System.out.println("[client#"+this.clientNum+"] Failed to login due to inactivity.");
-              
-              this.send("You have been disconnected due to inactivity.");
+            if (msg == null) {
               break;
             }
+            received((byte)0, msg);
           }
-          
-        } catch (IOException e) {
-          System.out.println("[client#"+this.clientNum+"] Login failed");
-          
-          //send back to client that login failed?
-          
-          e.printStackTrace();
-        } 
+        }
+        
+      } catch (IOException e) { 
+        if (running) {
+          log.log(ServerLog.Level.WARN, clientNum, loggedIn ? "Failed to receive msg" : "Login failed", e);
+        }
       }
       
-      //Get a message from the client
-      String msg="";
+      closeConnection();
+    } // end of run()
+    
+    /** closeConnection
+      * closes the socket and tells everyone this client has left
+      */
+    void closeConnection() {
+      synchronized (this) { //shutdown and the client's own thread may both get here
+        if (closed) {
+          return;
+        }
+        closed = true; //no more messages are queued from here on
+      }
+      running = false;
+      clients.remove(this);
       
-      while(running) {  // loop unit a message is received        
-        try {
-          
-          if (input.ready()) { //check for an incoming message
-            
-            msg = input.readLine();  //get a message from the client
-            ClientMessage clientMsg = new ClientMessage(msg);
-            
-            if (clientMsg.recipient.equals("?")) { 
-              
-              System.out.println("[client#"+this.clientNum+"] message to server: "+clientMsg.message);
-              
-              if (clientMsg.message.equals("quit")) {//if client quits -- <?><quit>
-                running = false;
-                status = "Offline";
-                clients.remove(this); //remove client from list
-                
-              } else if (clientMsg.message.equals("Do Not Disturb")) { //do not disturb mode
-                status = "Do Not Disturb";
-                
-              } else if (clientMsg.message.equals("Idle")) { //idle mode
-                status = "Idle";
-              }
-              
-              //update status to everyone -- if quit (this user should not be in the list anymore)
-              for (ConnectionHandler cl:clients) {
-                cl.send(getUserList(cl));
-              }
-              
-            } else if (clientMsg.recipient.equals("*")) { //send message to everyone -- <*><message>
-              sendToAll("*"+this.user+": "+ clientMsg.message); //tagged with asterisk to indicate global message
-              
-            } else { //direct message -- <recepientUser><message>
-              
-              for (ConnectionHandler cl:clients) { 
-                if (cl.getUser().equals(clientMsg.recipient)) { //only sends to this user and recipient
-                  cl.send("[Whisper To "+clientMsg.recipient+"] "+this.user+": "+clientMsg.message);
-                  this.send("[Whisper To "+clientMsg.recipient+"] "+this.user+": "+clientMsg.message);
-                }
-              }
-            }
-            
-            this.timeLastActive = System.currentTimeMillis();
-            
-          } else { //if there are no messages, check for timeout
-            
-            if (System.currentTimeMillis()-this.timeLastActive>=this.TIMEOUT) {
-              running = false;
-              System.out.println("[client#"+this.clientNum+"] User <"+this.user+"> is inactive; disconnecting user");
-              
-              this.send("You have been disconnected due to inactivity");
-              
-            } 
-          }
-          
-        } catch (IOException e) { 
-          System.out.println("[client#"+this.clientNum+"] Failed to receive msg");
-          e.printStackTrace();
+      for (String room:rooms) {
+        leaveRoom(this, room, false); //everyone is told this user left the chat below
+      }
+      
+      if (loggedIn) {
+        releaseUser(this.user, this);
+        status = "Offline";
+        
+        if (!stopping) { //when the server shuts down everyone goes; other nodes see the link drop instead
+          sendPresence(this, '-'); //this user should not be in the list anymore
         }
-      }    
+      }
       
       //close the socket
       try {
-        input.close();
-        output.close();
-        client.close();
+        if (blocking && !stopping) { //shutdown has already waited for every client
+          outbound.awaitDrained(1000); //give the writer a moment to send what is left (e.g. the timeout notice)
+        } else if (key != null && key.isValid()) {
+          writeToChannel(); //whatever was held back for batching, as far as the socket takes it
+        }
+        sink.close(); //also closes the socket
         
         if (this.user!=null) {
-          sendToAll(this.user+" has left the chat");
-          System.out.println("[client#"+this.clientNum+"] <"+this.user+"> disconnected/left");
+          if (!stopping) {
+            announce(this.user+" has left the chat");
+          }
+          log.info(clientNum, "<"+this.user+"> disconnected/left");
         } 
         
       }catch (Exception e) { 
-        System.out.println("[client#"+this.clientNum+"] Failed to close socket");
+        log.error(clientNum, "Failed to close socket", e);
       }
-    } // end of run()
+    }
   } //end of inner class   
-} //end of Class
\ No newline at end of file
+} //end of Class
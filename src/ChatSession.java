@@ -0,0 +1,254 @@
+/*[ChatSession.java]
+ * A chat client connection without a user interface
+ * @version 1.0
+ */
+
+//imports
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
+
+/**
+ * ChatSession
+ * one connection to the server speaking the same text protocol as ChatClient:
+ * the username as the first line, then <*><message>, <user><message> and <?><status or command>;
+ * every line from the server is handed to a listener from a reader run on the specified executor; when the server
+ * says it is restarting (WireProtocol.RESTART), the reader waits the delay it asked for, connects again and logs
+ * back in with the same name, trying again with a doubling wait while the server is not back yet
+ */
+class ChatSession implements Runnable {
+
+  /**
+   * Listener
+   * told about every line the session receives
+   */
+  interface Listener {
+
+    /**
+     * called on the reader for every line from the server
+     * @param session - session that received the line
+     * @param line - line without its line break
+     */
+    void received(ChatSession session, String line);
+
+    /**
+     * called on the reader once the connection has closed
+     * @param session - session that closed
+     */
+    void closed(ChatSession session);
+  }
+
+  /**
+   * longest wait in ms between two tries to reconnect
+   */
+  private static final long MAX_RECONNECT_MILLIS = 30000;
+
+  /**
+   * address and port of the server
+   */
+  private final String host;
+  private final int port;
+
+  /**
+   * connection to the server
+   */
+  private Socket socket;
+
+  /**
+   * stream for network input
+   */
+  private DataInputStream input;
+
+  /**
+   * stream for network output; flushed after every message
+   */
+  private PrintWriter output;
+
+  /**
+   * reused for the bytes of each line read
+   */
+  private ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+
+  /**
+   * told about every line received
+   */
+  private Listener listener;
+
+  /**
+   * username sent at login
+   */
+  private String user;
+
+  /**
+   * keeps track of whether the session is still open
+   */
+  private volatile boolean running = true;
+
+  /**
+   * time in ms the restarting server asked the session to wait before reconnecting, -1 if it did not say it was restarting
+   */
+  private volatile long reconnectDelay = -1;
+
+  /** ChatSession
+    * Constructor - connects to the server
+    * @param host - address of the server
+    * @param port - port of the server
+    * @param listener - told about every line received
+    */
+  ChatSession(String host, int port, Listener listener) throws IOException {
+    this.host = host;
+    this.port = port;
+    this.listener = listener;
+    open();
+  }
+
+  /** open
+    * connects to the server
+    */
+  private void open() throws IOException {
+    Socket socket = new Socket();
+    socket.setTcpNoDelay(true); //messages are small and should not wait for each other
+    socket.connect(new InetSocketAddress(host, port), 10000);
+
+    synchronized (this) { //not while a message is being sent on the old connection
+      this.socket = socket;
+      this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      this.output = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(socket.getOutputStream()), Charset.defaultCharset()));
+    }
+  }
+
+  /** login
+    * sends the username and starts reading from the server
+    * @param user - username to log in with
+    * @param readers - executor the reader runs on
+    */
+  public void login(String user, Executor readers) {
+    this.user = user;
+    sendLine(user);
+    readers.execute(this);
+  }
+
+  /** getUser
+    * @return username sent at login (the server adds "(n)" if it was already taken)
+    */
+  public String getUser() {
+    return this.user;
+  }
+
+  /** isRunning
+    * @return true until the connection has closed
+    */
+  public boolean isRunning() {
+    return running;
+  }
+
+  /** broadcast
+    * @param message - message for everyone -- <*><message>
+    */
+  public void broadcast(String message) {
+    sendLine("<*><"+message+">");
+  }
+
+  /** whisper
+    * @param recipient - user to send the message to
+    * @param message - direct message -- <recipient><message>
+    */
+  public void whisper(String recipient, String message) {
+    sendLine("<"+recipient+"><"+message+">");
+  }
+
+  /** setStatus
+    * @param status - Online, Idle or Do Not Disturb -- <?><status>
+    */
+  public void setStatus(String status) {
+    sendLine("<?><"+status+">");
+  }
+
+  /** quit
+    * tells the server the session is leaving; the server then closes the connection
+    */
+  public void quit() {
+    sendLine("<?><quit>");
+  }
+
+  /** sendLine
+    * @param line - line to send
+    */
+  private synchronized void sendLine(String line) {
+    output.println(line);
+    output.flush();
+  }
+
+  /** run
+    * reads lines until the server closes the connection, reconnecting if the server said it was restarting
+    */
+  public void run() {
+    do {
+      try {
+        String line = WireProtocol.readLine(input, lineBuffer, Charset.defaultCharset(), WireProtocol.MAX_PAYLOAD);
+
+        while (line != null) {
+          if (line.startsWith(WireProtocol.RESTART)) {
+            try {
+              reconnectDelay = Math.max(Long.parseLong(line.substring(WireProtocol.RESTART.length())), 0);
+            } catch (NumberFormatException e) {
+              //not a delay; no reconnecting
+            }
+          }
+          listener.received(this, line);
+          line = WireProtocol.readLine(input, lineBuffer, Charset.defaultCharset(), WireProtocol.MAX_PAYLOAD);
+        }
+      } catch (IOException e) {
+        //connection failed or was closed by close()
+      }
+    } while (reconnect());
+    close();
+    listener.closed(this);
+  }
+
+  /** reconnect
+    * waits as long as the restarting server asked, then connects again and logs back in, trying again with the
+    * wait doubling up to MAX_RECONNECT_MILLIS while the server is not back yet
+    * @return true if the session is connected again, false if the server did not say it was restarting or the
+    *         session was closed
+    */
+  private boolean reconnect() {
+    long wait = reconnectDelay;
+
+    try {
+      socket.close();
+    } catch (IOException e) {
+      //already closed
+    }
+
+    while (running && reconnectDelay >= 0) {
+      try {
+        Thread.sleep(wait);
+        open();
+        reconnectDelay = -1;
+        sendLine(user);
+        return true;
+      } catch (InterruptedException e) {
+        return false;
+      } catch (IOException e) {
+        wait = Math.min(Math.max(wait*2, 1000), MAX_RECONNECT_MILLIS);
+      }
+    }
+    return false;
+  }
+
+  /** close
+    * closes the connection without telling the server
+    */
+  public void close() {
+    running = false;
+
+    try {
+      socket.close();
+    } catch (IOException e) {
+      //already closed
+    }
+  }
+}
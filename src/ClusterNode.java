@@ -0,0 +1,614 @@
+/*[ClusterNode.java]
+ * Links between chat servers so that several of them act as one chat
+ * @version 1.0
+ */
+
+//imports
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ClusterNode
+ * one server's part of a cluster; every node owns its own client connections and keeps a persistent link to
+ * every other node: it sends on the link it opened to a peer and receives on the link the peer opened to it
+ *
+ * what goes over the links (frames as in WireProtocol; after HELLO, the payload is fields each written as its length
+ * in chars, ':' and the field, so a field can hold any character):
+ *   HELLO    node id                              first frame on every link (the id as it is)
+ *   MESSAGE  type char, target, from, line        deliver to local clients: "*" everyone, "#room" a room, else a user
+ *   PRESENCE change char, user, status            a user on the sending node joined (+), left (-) or changed status (~)
+ *   CLAIM    request id, name                     ask the owner of a name for it
+ *   GRANTED  request id, name granted             the owner's answer (with "(n)" added if the name was taken)
+ *   RELEASE  name                                 give a name back to its owner
+ *
+ * when a node's link is replaced by a new one (it reconnected, e.g. after its queue to this node overflowed), what
+ * this node knew of it is dropped as if the link went down, and rebuilt from the users the new link starts with
+ *
+ * usernames stay unique across the cluster because every name has one owner node (picked by hashing the name
+ * without any "(n)" suffix over the sorted list of node ids), and only the owner hands out that name and its
+ * "(n)" variants; if the owner cannot be reached the name is claimed locally (and may then clash)
+ *
+ * settings (--name=value):
+ *   cluster-port - port this node listens on for other nodes; no cluster unless this is given
+ *   cluster-host - address other nodes reach this node at, and the only one it listens on (default 127.0.0.1);
+ *                  with the port, this node's id
+ *   peers        - every other node as host:port,host:port,... (the same set on every node); a link is only taken
+ *                  from a node in this list, connecting from that node's host
+ */
+class ClusterNode {
+
+  /**
+   * Handler
+   * what the server does with what other nodes send
+   */
+  interface Handler {
+
+    /**
+     * delivers a message from another node to the local clients it is for
+     * @param type - ServerMessage type (WireProtocol.TEXT, BROADCAST or WHISPER)
+     * @param target - "*" for everyone, "#room" for a room's members, otherwise the username of the recipient
+     * @param from - user who sent it (empty for notices)
+     * @param line - message as it is shown to users
+     */
+    void deliverRemote(byte type, String target, String from, String line);
+
+    /**
+     * @param node - node the user is connected to
+     * @param change - '+' joined, '-' left, '~' changed status
+     * @param user - username
+     * @param status - status of the user
+     */
+    void remotePresence(String node, char change, String user, String status);
+
+    /**
+     * called when the link from a node is lost; its users should be treated as gone
+     * @param node - node that went away
+     */
+    void nodeDown(String node);
+
+    /**
+     * @return every local logged in user as {username, status}, sent to a node once a link to it is up
+     */
+    ArrayList<String[]> localUsers();
+  }
+
+  /**
+   * frame types on the links between nodes
+   */
+  static final byte HELLO = 'H';
+  static final byte MESSAGE = 'M';
+  static final byte PRESENCE = 'P';
+  static final byte CLAIM = 'N';
+  static final byte GRANTED = 'G';
+  static final byte RELEASE = 'X';
+
+  /**
+   * frames waiting to be sent to one peer when it is slow or down; past this the queue is thrown away and the link
+   * reopened, which sends the peer this node's users again (dropping single frames could lose a leave or a release)
+   */
+  private static final int LINK_QUEUE = 65536;
+
+  /**
+   * how long a login waits for the owner of a name to answer, in ms
+   */
+  private static final long CLAIM_TIMEOUT = 2000;
+
+  /**
+   * this node's id (host:port)
+   */
+  private final String self;
+
+  /**
+   * ids of every node in the cluster, sorted, so that every node picks the same owner for a name
+   */
+  private final String[] nodes;
+
+  /**
+   * links to the other nodes by node id
+   */
+  private ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+
+  /**
+   * link each other node is currently sending on, by node id
+   */
+  private ConcurrentHashMap<String, Socket> links = new ConcurrentHashMap<>();
+
+  /**
+   * names this node owns, and the node each one is in use on
+   */
+  private ConcurrentHashMap<String, String> owned = new ConcurrentHashMap<>();
+
+  /**
+   * claims sent to other nodes that have not been answered yet, by request id
+   */
+  private ConcurrentHashMap<Long, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+  private AtomicLong nextRequest = new AtomicLong();
+
+  /**
+   * what the server does with what other nodes send
+   */
+  private final Handler handler;
+
+  /**
+   * where the node reports what happens
+   */
+  private final ServerLog log;
+
+  /**
+   * number of frames dropped because a link queue was full
+   */
+  private AtomicLong dropped = new AtomicLong();
+
+  /** ClusterNode
+    * Constructor - starts listening for other nodes and connecting to them
+    * @param options - settings from the command line (see above)
+    * @param handler - what the server does with what other nodes send
+    * @param log - where the node reports what happens
+    */
+  ClusterNode(ChatServer.ServerOptions options, Handler handler, ServerLog log) throws IOException {
+    this.handler = handler;
+    this.log = log;
+    int port = options.getInt("cluster-port", 0);
+    String host = options.get("cluster-host", "127.0.0.1");
+    this.self = host+":"+port;
+
+    ArrayList<String> ids = new ArrayList<>();
+    ids.add(self);
+    for (String peer:options.get("peers", "").split(",")) {
+      if (!peer.trim().isEmpty() && !peer.trim().equals(self)) {
+        ids.add(peer.trim());
+      }
+    }
+    this.nodes = ids.toArray(new String[0]);
+    Arrays.sort(nodes);
+
+    ServerSocket listener = new ServerSocket();
+    listener.bind(new InetSocketAddress(host, port)); //not every address; the links are not authenticated otherwise
+
+    for (String id:nodes) {
+      if (!id.equals(self)) {
+        Peer peer = new Peer(id);
+        peers.put(id, peer);
+        start("cluster-link-"+id, peer);
+      }
+    }
+    start("cluster-accept", () -> accept(listener)); //once the peers are known, so none of their links is refused
+    log.info("Cluster node "+self+" of "+Arrays.toString(nodes));
+  }
+
+  /** start
+    * @param name - name of the thread
+    * @param task - what the thread runs
+    */
+  private static void start(String name, Runnable task) {
+    Thread thread = new Thread(task, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** getSelf
+    * @return this node's id
+    */
+  public String getSelf() {
+    return self;
+  }
+
+  /** getDropped
+    * @return number of frames dropped because a link queue was full
+    */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  //***** Names
+
+  /** ownerOf
+    * @param name - username, with or without a "(n)" suffix
+    * @return id of the node that hands out the name
+    */
+  private String ownerOf(String name) {
+    String base = name.replaceFirst("\\(\\d+\\)$", ""); //"bob(2)" belongs to whoever owns "bob"
+    return nodes[Math.floorMod(base.hashCode(), nodes.length)];
+  }
+
+  /** claim
+    * hands out a name this node owns, adding "(n)" if it is already in use
+    * @param name - name asked for
+    * @param node - node the user is on
+    * @return the name granted
+    */
+  private String claim(String name, String node) {
+    if (owned.putIfAbsent(name, node) == null) {
+      return name;
+    }
+
+    for (int dupNum = 1; ; dupNum++) { //the lowest free number, so numbers are reused once their users leave
+      String dupName = name+"("+dupNum+")";
+
+      if (owned.putIfAbsent(dupName, node) == null) {
+        return dupName;
+      }
+    }
+  }
+
+  /** reserve
+    * gets a username that is unique across the cluster, asking the name's owner if that is another node; never
+    * waits, so it can be called from the selector thread
+    * @param name - name asked for
+    * @return the name granted, once the owner answers (or, if it does not within CLAIM_TIMEOUT, the name claimed
+    *         locally); completed on the thread reading the owner's link or the timeout thread
+    */
+  public CompletableFuture<String> reserve(String name) {
+    String owner = ownerOf(name);
+
+    if (owner.equals(self)) {
+      return CompletableFuture.completedFuture(claim(name, self));
+    }
+
+    long id = nextRequest.incrementAndGet();
+    CompletableFuture<String> answer = new CompletableFuture<>();
+    pending.put(id, answer);
+    peers.get(owner).send(CLAIM, join(Long.toString(id), name));
+
+    return answer.completeOnTimeout(null, CLAIM_TIMEOUT, TimeUnit.MILLISECONDS).thenApply(granted -> {
+      pending.remove(id);
+      if (granted == null) { //a late answer finds nothing waiting and gives the name back
+        log.warn("Node "+owner+" did not answer a claim for <"+name+">; claiming it locally");
+        return claim(name, self);
+      }
+      return granted;
+    });
+  }
+
+  /** release
+    * gives a username back to its owner
+    * @param name - name to give back
+    */
+  public void release(String name) {
+    String owner = ownerOf(name);
+
+    if (owner.equals(self)) {
+      owned.remove(name, self);
+    } else {
+      owned.remove(name, self); //in case it was claimed locally while the owner was down
+      peers.get(owner).send(RELEASE, join(name));
+    }
+  }
+
+  //***** Sending
+
+  /** relay
+    * sends a message to every other node for delivery to its local clients
+    * @param type - ServerMessage type
+    * @param target - "*" for everyone, "#room" for a room's members
+    * @param from - user who sent it (empty for notices)
+    * @param line - message as it is shown to users
+    */
+  public void relay(byte type, String target, String from, String line) {
+    String payload = join(String.valueOf((char)type), target, from, line);
+
+    for (Peer peer:peers.values()) {
+      peer.send(MESSAGE, payload);
+    }
+  }
+
+  /** relayTo
+    * sends a message to the node a user is on
+    * @param node - node the recipient is on
+    * @param type - ServerMessage type
+    * @param recipient - username of the recipient
+    * @param from - user who sent it
+    * @param line - message as it is shown to users
+    * @return false if the node is unknown
+    */
+  public boolean relayTo(String node, byte type, String recipient, String from, String line) {
+    Peer peer = peers.get(node);
+
+    if (peer == null) {
+      return false;
+    }
+    peer.send(MESSAGE, join(String.valueOf((char)type), recipient, from, line));
+    return true;
+  }
+
+  /** presence
+    * tells every other node about a change to a local user
+    * @param change - '+' joined, '-' left, '~' changed status
+    * @param user - username
+    * @param status - status of the user
+    */
+  public void presence(char change, String user, String status) {
+    for (Peer peer:peers.values()) {
+      peer.send(PRESENCE, join(String.valueOf(change), user, status));
+    }
+  }
+
+  /** send
+    * @param node - node to send to
+    * @param type - frame type
+    * @param payload - frame payload
+    */
+  private void send(String node, byte type, String payload) {
+    Peer peer = peers.get(node);
+
+    if (peer != null) {
+      peer.send(type, payload);
+    }
+  }
+
+  //***** Receiving
+
+  /** accept
+    * accepts links from other nodes, reading each on its own thread
+    * @param listener - socket other nodes connect to
+    */
+  private void accept(ServerSocket listener) {
+    while (true) {
+      try {
+        Socket socket = listener.accept();
+        start("cluster-read", () -> read(socket));
+      } catch (IOException e) {
+        log.error("Cluster listener failed", e);
+        return;
+      }
+    }
+  }
+
+  /** read
+    * handles the frames on a link from another node until it closes
+    * @param socket - link from the node
+    */
+  private void read(Socket socket) {
+    String node = null;
+
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+      WireProtocol.Frame hello = WireProtocol.readFrame(in, WireProtocol.MAX_PAYLOAD);
+
+      if (hello == null || hello.type != HELLO || !isPeer(hello.payload, socket.getInetAddress())) {
+        log.warn("Refused a cluster link from "+socket.getInetAddress().getHostAddress()
+                   +((hello != null && hello.type == HELLO) ? " claiming to be "+hello.payload : ""));
+        socket.close();
+        return;
+      }
+      node = hello.payload;
+      log.info("Cluster link from "+node+" is up");
+
+      Socket old = links.put(node, socket);
+      if (old != null) { //the node reconnected before the old link was seen to drop; start again from what it sends
+        old.close();
+        owned.values().removeIf(node::equals);
+        handler.nodeDown(node);
+      }
+
+      WireProtocol.Frame frame = WireProtocol.readFrame(in, WireProtocol.MAX_PAYLOAD);
+      while (frame != null) {
+        try {
+          handle(node, frame.type, frame.payload);
+        } catch (RuntimeException e) { //one bad frame does not take the link down with it
+          log.warn("Dropped a malformed cluster frame from "+node+": "+e);
+        }
+        frame = WireProtocol.readFrame(in, WireProtocol.MAX_PAYLOAD);
+      }
+    } catch (IOException e) {
+      //link lost
+    }
+
+    try {
+      socket.close();
+    } catch (IOException e) {
+      //already closed
+    }
+
+    if (node != null && links.remove(node, socket)) { //not if a newer link from the node replaced this one
+      log.warn("Cluster link from "+node+" is down");
+      owned.values().removeIf(node::equals); //its users are gone, so are their names
+      handler.nodeDown(node);
+    }
+  }
+
+  /** isPeer
+    * @param id - node id a link says it is from
+    * @param address - address the link comes from
+    * @return true if the id is one of the other nodes in --peers and the link comes from that node's host
+    */
+  private boolean isPeer(String id, InetAddress address) {
+    if (!peers.containsKey(id)) {
+      return false;
+    }
+
+    try {
+      for (InetAddress allowed:InetAddress.getAllByName(id.substring(0, id.lastIndexOf(':')))) {
+        if (allowed.equals(address)) {
+          return true;
+        }
+      }
+    } catch (UnknownHostException e) {
+      //the peer's host cannot be looked up, so no link can be shown to come from it
+    }
+    return false;
+  }
+
+  /** handle
+    * @param node - node the frame came from
+    * @param type - frame type
+    * @param payload - frame payload
+    */
+  private void handle(String node, byte type, String payload) {
+    if (type == MESSAGE) {
+      String[] fields = split(payload, 4);
+      handler.deliverRemote((byte)fields[0].charAt(0), fields[1], fields[2], fields[3]);
+
+    } else if (type == PRESENCE) {
+      String[] fields = split(payload, 3);
+      char change = fields[0].charAt(0);
+      String user = fields[1];
+
+      if (ownerOf(user).equals(self)) { //keep the name's owner up to date (e.g. after a link comes back)
+        if (change == '-') {
+          owned.remove(user, node);
+        } else {
+          owned.put(user, node);
+        }
+      }
+      handler.remotePresence(node, change, user, fields[2]);
+
+    } else if (type == CLAIM) {
+      String[] fields = split(payload, 2);
+      send(node, GRANTED, join(fields[0], claim(fields[1], node)));
+
+    } else if (type == GRANTED) {
+      String[] fields = split(payload, 2);
+      CompletableFuture<String> answer = pending.get(Long.parseLong(fields[0]));
+      if (answer == null || !answer.complete(fields[1])) {
+        send(node, RELEASE, join(fields[1])); //the login gave up waiting and claimed a name locally
+      }
+
+    } else if (type == RELEASE) {
+      owned.remove(split(payload, 1)[0], node);
+    }
+  }
+
+  /** join
+    * @param fields - fields of a frame
+    * @return the payload holding them, each as its length in chars, ':' and the field
+    */
+  static String join(String... fields) {
+    StringBuilder payload = new StringBuilder();
+
+    for (String field:fields) {
+      payload.append(field.length()).append(':').append(field);
+    }
+    return payload.toString();
+  }
+
+  /** split
+    * @param payload - payload written by join
+    * @param count - number of fields it should hold
+    * @return the fields
+    * @throws IllegalArgumentException if the payload does not hold exactly that many fields
+    */
+  static String[] split(String payload, int count) {
+    String[] fields = new String[count];
+    int position = 0;
+
+    for (int i = 0; i < count; i++) {
+      int colon = payload.indexOf(':', position);
+      if (colon == -1) {
+        throw new IllegalArgumentException("field "+i+" is missing");
+      }
+
+      int length = Integer.parseInt(payload, position, colon, 10);
+      if (length < 0 || length > payload.length()-colon-1) {
+        throw new IllegalArgumentException("field "+i+" is cut short");
+      }
+      fields[i] = payload.substring(colon+1, colon+1+length);
+      position = colon+1+length;
+    }
+
+    if (position != payload.length()) {
+      throw new IllegalArgumentException("more than "+count+" fields");
+    }
+    return fields;
+  }
+
+  /**
+   * Peer
+   * the link this node opened to another node; frames are queued so senders never wait on the network,
+   * and the link is reopened (and this node's users sent again) whenever it drops
+   */
+  private class Peer implements Runnable {
+    private final String id;
+    private ArrayBlockingQueue<ByteArrayOutputStream> queue = new ArrayBlockingQueue<>(LINK_QUEUE);
+
+    /**
+     * put in the queue when it overflows; the link is reopened when it is reached
+     */
+    private final ByteArrayOutputStream reopen = new ByteArrayOutputStream(0);
+
+    Peer(String id) {
+      this.id = id;
+    }
+
+    /** send
+      * @param type - frame type
+      * @param payload - frame payload
+      */
+    void send(byte type, String payload) {
+      ByteArrayOutputStream frame = new ByteArrayOutputStream(WireProtocol.HEADER_LENGTH+payload.length());
+
+      try {
+        WireProtocol.writeFrame(new DataOutputStream(frame), type, payload);
+      } catch (IOException e) {
+        return; //cannot happen writing to memory
+      }
+
+      synchronized (this) {
+        if (!queue.offer(frame)) { //peer is down or far behind; it is sent everything it needs again instead
+          dropped.addAndGet(queue.size()+1);
+          queue.clear();
+          queue.offer(reopen);
+        }
+      }
+    }
+
+    /** run
+      * connects to the peer and writes queued frames, reconnecting whenever the link drops
+      */
+    public void run() {
+      String host = id.substring(0, id.lastIndexOf(':'));
+      int port = Integer.parseInt(id.substring(id.lastIndexOf(':')+1));
+
+      while (true) {
+        try (Socket socket = new Socket()) {
+          socket.connect(new InetSocketAddress(host, port), 2000);
+          socket.setTcpNoDelay(true);
+          OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+          DataOutputStream data = new DataOutputStream(out);
+
+          WireProtocol.writeFrame(data, HELLO, self);
+          for (String[] user:handler.localUsers()) { //the peer may have dropped this node's users while the link was down
+            WireProtocol.writeFrame(data, PRESENCE, join("+", user[0], user[1]));
+          }
+          out.flush();
+          log.info("Cluster link to "+id+" is up");
+
+          while (true) {
+            ByteArrayOutputStream frame = queue.take();
+
+            do { //write everything waiting, then flush once
+              if (frame == reopen) {
+                log.warn("Cluster link to "+id+" fell too far behind; reopening it");
+                out.flush();
+                throw new IOException("link queue overflowed");
+              }
+              frame.writeTo(out);
+            } while ((frame = queue.poll()) != null);
+            out.flush();
+          }
+        } catch (IOException e) {
+          //not up yet, or the link dropped; try again shortly
+        } catch (InterruptedException e) {
+          return;
+        }
+
+        try {
+          Thread.sleep(1000);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*[LatencyHistogram.java]
+ * A fixed-size histogram of latencies that many threads can record into without locking
+ * @version 1.0
+ */
+
+//imports
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram
+ * counts values in log-linear buckets the way HdrHistogram does: values below 128 get a bucket each,
+ * and every power of two above that is split into 64 buckets, so any value is known to within about 1.6%
+ * while the whole range of a long fits in 3776 counters
+ *
+ * recording is one atomic increment of the value's bucket (values land in different buckets, so threads rarely
+ * share one) and one add to a striped LongAdder for the sum; the max is only written when a new largest value
+ * is seen; the count is not kept separately but summed from the buckets when the histogram is read
+ */
+class LatencyHistogram {
+
+  /**
+   * bits of each value that are kept exactly
+   */
+  private static final int SUB_BUCKET_BITS = 7;
+
+  /**
+   * number of buckets per power of two above the first 2^SUB_BUCKET_BITS values
+   */
+  private static final int HALF = 1 << (SUB_BUCKET_BITS-1);
+
+  /**
+   * number of values recorded into each bucket
+   */
+  private final AtomicLongArray counts = new AtomicLongArray((64-SUB_BUCKET_BITS+2)*HALF);
+
+  /**
+   * sum of the values recorded
+   */
+  private final LongAdder sum = new LongAdder();
+
+  /**
+   * largest value recorded
+   */
+  private final AtomicLong max = new AtomicLong();
+
+  /** record
+    * @param value - value to count (negative values are counted as 0)
+    */
+  public void record(long value) {
+    value = Math.max(value, 0);
+    counts.incrementAndGet(indexOf(value));
+    sum.add(value);
+
+    long largest = max.get(); //only read unless this is a new max
+    while (value > largest && !max.compareAndSet(largest, value)) {
+      largest = max.get();
+    }
+  }
+
+  /** indexOf
+    * @param value - value to find the bucket of (not negative)
+    * @return index of the bucket holding the value
+    */
+  private static int indexOf(long value) {
+    int shift = Math.max(0, 64-Long.numberOfLeadingZeros(value)-SUB_BUCKET_BITS);
+    int subBucket = (int)(value >>> shift);
+    return (shift == 0) ? subBucket : shift*HALF+subBucket;
+  }
+
+  /** highestValueOf
+    * @param index - index of a bucket
+    * @return largest value counted in the bucket
+    */
+  private static long highestValueOf(int index) {
+    if (index < 2*HALF) {
+      return index;
+    }
+    int shift = index/HALF-1;
+    long subBucket = index-shift*HALF;
+    return ((subBucket+1) << shift)-1;
+  }
+
+  /** getCount
+    * @return number of values recorded
+    */
+  public long getCount() {
+    long n = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      n += counts.get(i);
+    }
+    return n;
+  }
+
+  /** getMax
+    * @return largest value recorded, or 0 if none were
+    */
+  public long getMax() {
+    return max.get();
+  }
+
+  /** getMean
+    * @return average of the values recorded, or 0 if none were
+    */
+  public double getMean() {
+    long n = getCount();
+    return (n == 0) ? 0 : (double)sum.sum()/n;
+  }
+
+  /** percentile
+    * @param percent - percentile to find, from 0 to 100
+    * @return value that the specified percent of recorded values are at or below (to within the bucket width)
+    */
+  public long percentile(double percent) {
+    long n = getCount();
+
+    if (n == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long)Math.ceil(percent/100*n));
+    long seen = 0;
+
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highestValueOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+}
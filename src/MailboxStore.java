@@ -0,0 +1,544 @@
+/*[MailboxStore.java]
+ * On-disk mailboxes holding whispers to users who are not logged in until they next log in
+ * @version 1.0
+ */
+
+//imports
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MailboxStore
+ * keeps one file per recipient, named by the hex of the username's UTF-8 bytes, of records
+ * [time in ms: long][sender length: int][line length: int][sender: UTF-8][line: UTF-8]; each whisper is one append
+ * to the end of its file
+ *
+ * what is in each mailbox (file, messages, bytes, oldest time) is kept in a map by username, so a login with no mail
+ * costs one map lookup and never touches the disk; a login with mail moves the file aside (to .sent) and reads it,
+ * and the file is deleted only once the whispers are queued to the user, so a failure in between loses nothing
+ * (a .sent file found at start is put back in its mailbox)
+ *
+ * only users who have logged in before can be sent mail; their names are kept in the file "users" (hex, one a line),
+ * so a mistyped or made up name cannot fill the store
+ *
+ * the store is bounded: each mailbox holds at most a number of messages, each sender has at most a number of messages
+ * waiting across all mailboxes, all mailboxes together hold at most a number of bytes (a whisper that does not fit is
+ * refused, so the sender can be told), and messages older than the time to live are dropped by a background sweep
+ * every minute and skipped when a mailbox is read
+ *
+ * settings (--name=value):
+ *   mailbox           - directory of the mailboxes; whispers to users who are not online are not kept unless this is given
+ *   mailbox-messages  - most messages kept for one user (default 100)
+ *   mailbox-sender    - most messages one sender can have waiting for all users together (default 100)
+ *   mailbox-mb        - most MB kept for all users together (default 64)
+ *   mailbox-days      - days a message is kept before it is dropped (default 7)
+ */
+class MailboxStore implements Runnable {
+
+  /**
+   * length of a record header (time, sender length, line length)
+   */
+  private static final int HEADER_LENGTH = 16;
+
+  /**
+   * longest username, in bytes, that can have a mailbox (its file name is twice as long)
+   */
+  private static final int MAX_NAME_BYTES = 120;
+
+  /**
+   * how often expired messages are looked for, in ms
+   */
+  private static final long SWEEP_MILLIS = 60000;
+
+  /**
+   * Mailbox
+   * what is in one user's file
+   */
+  private static class Mailbox {
+    final File file;
+    int count;
+    long bytes;
+    long oldest;
+
+    Mailbox(File file) {
+      this.file = file;
+    }
+  }
+
+  /**
+   * Letter
+   * a message read back from a mailbox
+   */
+  static class Letter {
+    final long time;
+    final String sender;
+    final String line;
+
+    Letter(long time, String sender, String line) {
+      this.time = time;
+      this.sender = sender;
+      this.line = line;
+    }
+  }
+
+  /**
+   * directory holding the mailbox files
+   */
+  private final File dir;
+
+  /**
+   * most messages per mailbox, most messages waiting from one sender, most bytes for all mailboxes, and how long a
+   * message is kept in ms
+   */
+  private final int maxMessages;
+  private final int maxPerSender;
+  private final long maxBytes;
+  private final long ttlMillis;
+
+  /**
+   * mailboxes by username; only users with mail have one
+   */
+  private ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+  /**
+   * users who have logged in before, and the file they are kept in
+   */
+  private final Set<String> known = ConcurrentHashMap.newKeySet();
+  private final File knownFile;
+
+  /**
+   * messages waiting in all mailboxes by sender; only senders with some waiting are in it
+   */
+  private HashMap<String, Integer> waiting = new HashMap<>();
+
+  /**
+   * bytes in all mailboxes, and messages dropped for being too old
+   */
+  private long totalBytes = 0;
+  private long expired = 0;
+
+  /**
+   * where the store reports a mailbox it could not rewrite
+   */
+  private final ServerLog log;
+
+  /** MailboxStore
+    * Constructor - opens (or creates) the store and starts sweeping it in the background
+    * @param options - settings from the command line (see above)
+    * @param log - where the store reports a mailbox it could not rewrite
+    */
+  MailboxStore(ChatServer.ServerOptions options, ServerLog log) throws IOException {
+    this(new File(options.get("mailbox", "mailbox")),
+         options.getInt("mailbox-messages", 100),
+         options.getInt("mailbox-sender", 100),
+         options.getInt("mailbox-mb", 64)*1024L*1024L,
+         options.getInt("mailbox-days", 7)*86400000L,
+         log);
+  }
+
+  /** MailboxStore
+    * Constructor - opens (or creates) the store and starts sweeping it in the background
+    * @param dir - directory of the mailboxes
+    * @param maxMessages - most messages kept for one user
+    * @param maxPerSender - most messages one sender can have waiting for all users together
+    * @param maxBytes - most bytes kept for all users together
+    * @param ttlMillis - how long a message is kept in ms
+    * @param log - where the store reports a mailbox it could not rewrite
+    */
+  MailboxStore(File dir, int maxMessages, int maxPerSender, long maxBytes, long ttlMillis, ServerLog log) throws IOException {
+    this.dir = dir;
+    this.log = log;
+    this.maxMessages = maxMessages;
+    this.maxPerSender = maxPerSender;
+    this.maxBytes = maxBytes;
+    this.ttlMillis = ttlMillis;
+    this.knownFile = new File(dir, "users");
+
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create mailbox directory "+dir);
+    }
+
+    if (knownFile.exists()) {
+      for (String hex:Files.readAllLines(knownFile.toPath(), WireProtocol.UTF8)) {
+        if (hex.matches("([0-9a-f]{2})+")) { //a line cut short by a crash is left out
+          known.add(fromHex(hex));
+        }
+      }
+    }
+
+    //put back mailboxes that were being delivered when the server stopped, ahead of anything that came after
+    File[] sent = dir.listFiles((d, name) -> name.matches("([0-9a-f]{2})+\\.sent"));
+    if (sent != null) {
+      for (File file:sent) {
+        File box = boxOf(file);
+        ArrayList<Letter> letters = read(file);
+        letters.addAll(read(box));
+        write(box, letters); //if this fails both files are left as they are, to be put back at the next start
+        file.delete();
+      }
+    }
+
+    //rebuild the map from the files already on disk
+    File[] files = dir.listFiles((d, name) -> name.matches("([0-9a-f]{2})+\\.box"));
+    if (files != null) {
+      for (File file:files) {
+        String user = nameOf(file);
+        Mailbox mailbox = new Mailbox(file);
+        ArrayList<Letter> letters = read(file);
+
+        for (Letter letter:letters) {
+          add(mailbox, letter);
+        }
+        if (mailbox.count > 0) {
+          mailboxes.put(user, mailbox);
+          totalBytes += mailbox.bytes;
+        } else {
+          file.delete();
+        }
+      }
+    }
+    sweep();
+
+    Thread sweeper = new Thread(this, "mailbox-sweep");
+    sweeper.setDaemon(true);
+    sweeper.start();
+  }
+
+  /** loggedIn
+    * remembers a user as one who can be sent mail
+    * @param user - user who logged in
+    */
+  public void loggedIn(String user) throws IOException {
+    if (known.contains(user)) { //every login but a user's first; no lock and no disk
+      return;
+    }
+
+    synchronized (this) {
+      if (known.add(user)) {
+        try (FileOutputStream out = new FileOutputStream(knownFile, true)) {
+          out.write((toHex(user.getBytes(WireProtocol.UTF8))+"\n").getBytes(WireProtocol.UTF8));
+        }
+      }
+    }
+  }
+
+  /** isKnown
+    * @param user - a username
+    * @return true if the user has logged in before, so can be sent mail
+    */
+  public boolean isKnown(String user) {
+    return known.contains(user);
+  }
+
+  /** put
+    * appends a whisper to a user's mailbox
+    * @param sender - user who sent the whisper
+    * @param user - user the whisper is for
+    * @param line - whisper as it is shown to the user
+    * @return true if it was kept, false if the user has never logged in, or the sender, the mailbox or the store is full
+    */
+  public synchronized boolean put(String sender, String user, String line) throws IOException {
+    if (!known.contains(user) || waiting.getOrDefault(sender, 0) >= maxPerSender) {
+      return false;
+    }
+
+    byte[] from = sender.getBytes(WireProtocol.UTF8);
+    byte[] bytes = line.getBytes(WireProtocol.UTF8);
+    int length = HEADER_LENGTH+from.length+bytes.length;
+    Mailbox mailbox = mailboxes.get(user);
+
+    if (mailbox == null) {
+      byte[] name = user.getBytes(WireProtocol.UTF8);
+      if (name.length > MAX_NAME_BYTES) {
+        return false;
+      }
+      mailbox = new Mailbox(new File(dir, toHex(name)+".box"));
+    }
+    if (mailbox.count >= maxMessages || totalBytes+length > maxBytes) {
+      return false;
+    }
+
+    long now = System.currentTimeMillis();
+    ByteBuffer record = ByteBuffer.allocate(length);
+    record.putLong(now).putInt(from.length).putInt(bytes.length).put(from).put(bytes);
+
+    try (FileOutputStream out = new FileOutputStream(mailbox.file, true)) {
+      out.write(record.array()); //one write per record, so a crash leaves at most the last record cut short
+    }
+
+    add(mailbox, new Letter(now, sender, line));
+    totalBytes += length;
+    mailboxes.put(user, mailbox);
+    return true;
+  }
+
+  /** take
+    * empties a user's mailbox, moving its file aside until delivered() is called
+    * @param user - user who logged in
+    * @return the messages still within the time to live, oldest first (empty if there were none)
+    */
+  public ArrayList<Letter> take(String user) {
+    if (!mailboxes.containsKey(user)) { //most logins; no lock and no disk
+      return new ArrayList<>();
+    }
+
+    ArrayList<Letter> letters;
+    synchronized (this) { //a whisper arriving meanwhile starts a new file once this one is moved aside
+      Mailbox mailbox = mailboxes.remove(user);
+      if (mailbox == null) {
+        return new ArrayList<>();
+      }
+      totalBytes -= mailbox.bytes;
+      File sent = sentOf(mailbox.file);
+      mailbox.file.renameTo(sent);
+      letters = read(sent);
+      release(letters);
+    }
+    dropExpired(letters);
+    return letters;
+  }
+
+  /** delivered
+    * deletes a mailbox taken with take(), once its messages are queued to the user
+    * @param user - user who logged in
+    */
+  public void delivered(String user) {
+    sentOf(boxOf(user)).delete();
+  }
+
+  /** sweep
+    * drops the messages past the time to live, rewriting only the mailboxes that have some
+    */
+  public synchronized void sweep() {
+    long cutoff = System.currentTimeMillis()-ttlMillis;
+    Iterator<Mailbox> boxes = mailboxes.values().iterator();
+
+    while (boxes.hasNext()) {
+      Mailbox mailbox = boxes.next();
+      if (mailbox.oldest >= cutoff) {
+        continue;
+      }
+
+      ArrayList<Letter> letters = read(mailbox.file);
+      ArrayList<Letter> kept = new ArrayList<>(letters);
+      kept.removeIf(letter -> letter.time < cutoff);
+
+      if (kept.isEmpty()) {
+        mailbox.file.delete();
+        boxes.remove();
+      } else {
+        try {
+          write(mailbox.file, kept);
+        } catch (IOException e) { //the file and what is counted are left as they were, for the next sweep
+          log.warn("Could not drop expired mail from "+mailbox.file+": "+e.getMessage());
+          continue;
+        }
+      }
+
+      release(letters);
+      expired += letters.size()-kept.size();
+      totalBytes -= mailbox.bytes;
+      mailbox.count = 0;
+      mailbox.bytes = 0;
+      for (Letter letter:kept) {
+        add(mailbox, letter);
+      }
+      totalBytes += mailbox.bytes;
+    }
+  }
+
+  /** write
+    * replaces a mailbox file as a whole: the messages go to a new file, which is forced to disk and then moved over
+    * the old one, so a crash or a full disk leaves either the old file or the new one
+    * @param file - a mailbox file to replace
+    * @param letters - the messages to put in it, oldest first
+    */
+  private static void write(File file, ArrayList<Letter> letters) throws IOException {
+    File temp = new File(file.getParentFile(), file.getName()+".tmp");
+
+    try (FileOutputStream fileOut = new FileOutputStream(temp);
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+      for (Letter letter:letters) {
+        byte[] from = letter.sender.getBytes(WireProtocol.UTF8);
+        byte[] bytes = letter.line.getBytes(WireProtocol.UTF8);
+        out.writeLong(letter.time);
+        out.writeInt(from.length);
+        out.writeInt(bytes.length);
+        out.write(from);
+        out.write(bytes);
+      }
+      out.flush();
+      fileOut.getChannel().force(true);
+    } catch (IOException e) {
+      temp.delete();
+      throw e;
+    }
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** dropExpired
+    * @param letters - messages to filter (removed from in place); the count of dropped ones is kept
+    */
+  private void dropExpired(ArrayList<Letter> letters) {
+    long cutoff = System.currentTimeMillis()-ttlMillis;
+    int before = letters.size();
+    letters.removeIf(letter -> letter.time < cutoff);
+
+    synchronized (this) {
+      expired += before-letters.size();
+    }
+  }
+
+  /** add
+    * counts a message in a mailbox and against its sender
+    * @param mailbox - the mailbox
+    * @param letter - the message
+    */
+  private void add(Mailbox mailbox, Letter letter) {
+    if (mailbox.count == 0 || letter.time < mailbox.oldest) {
+      mailbox.oldest = letter.time;
+    }
+    mailbox.count++;
+    mailbox.bytes += HEADER_LENGTH+letter.sender.getBytes(WireProtocol.UTF8).length
+                     +letter.line.getBytes(WireProtocol.UTF8).length;
+    waiting.merge(letter.sender, 1, Integer::sum);
+  }
+
+  /** release
+    * stops counting messages that left the store against their senders
+    * @param letters - the messages
+    */
+  private void release(ArrayList<Letter> letters) {
+    for (Letter letter:letters) {
+      waiting.computeIfPresent(letter.sender, (sender, count) -> (count > 1) ? count-1 : null);
+    }
+  }
+
+  /** read
+    * @param file - a mailbox file
+    * @return the messages in it, oldest first; a record cut short at the end is left out
+    */
+  private static ArrayList<Letter> read(File file) {
+    ArrayList<Letter> letters = new ArrayList<>();
+
+    try {
+      ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(file.toPath())); //one read for the whole mailbox
+
+      while (records.remaining() >= HEADER_LENGTH) {
+        long time = records.getLong();
+        int fromLength = records.getInt();
+        int length = records.getInt();
+
+        if (fromLength < 0 || length < 0 || (long)fromLength+length > records.remaining()) {
+          break;
+        }
+        String sender = new String(records.array(), records.position(), fromLength, WireProtocol.UTF8);
+        String line = new String(records.array(), records.position()+fromLength, length, WireProtocol.UTF8);
+        letters.add(new Letter(time, sender, line));
+        records.position(records.position()+fromLength+length);
+      }
+    } catch (IOException e) { //nothing more can be read back (or there is no such file)
+    }
+    return letters;
+  }
+
+  /** toHex
+    * @param bytes - bytes of a username
+    * @return the bytes as lowercase hex, safe as a file name on any file system
+    */
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length*2);
+    for (byte b:bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  /** boxOf
+    * @param user - a username
+    * @return the user's mailbox file
+    */
+  private File boxOf(String user) {
+    return new File(dir, toHex(user.getBytes(WireProtocol.UTF8))+".box");
+  }
+
+  /** boxOf
+    * @param sent - a mailbox file moved aside by take()
+    * @return the mailbox file it was
+    */
+  private static File boxOf(File sent) {
+    String name = sent.getName();
+    return new File(sent.getParentFile(), name.substring(0, name.length()-5)+".box");
+  }
+
+  /** sentOf
+    * @param box - a mailbox file
+    * @return where take() moves it until it is delivered
+    */
+  private static File sentOf(File box) {
+    String name = box.getName();
+    return new File(box.getParentFile(), name.substring(0, name.length()-4)+".sent");
+  }
+
+  /** nameOf
+    * @param file - a mailbox file
+    * @return username the file is for
+    */
+  private static String nameOf(File file) {
+    return fromHex(file.getName().substring(0, file.getName().length()-4));
+  }
+
+  /** fromHex
+    * @param hex - lowercase hex of a username's UTF-8 bytes
+    * @return the username
+    */
+  private static String fromHex(String hex) {
+    byte[] bytes = new byte[hex.length()/2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte)Integer.parseInt(hex.substring(i*2, i*2+2), 16);
+    }
+    return new String(bytes, WireProtocol.UTF8);
+  }
+
+  /** size
+    * @return number of users with mail
+    */
+  public int size() {
+    return mailboxes.size();
+  }
+
+  /** getBytes
+    * @return bytes in all mailboxes
+    */
+  public synchronized long getBytes() {
+    return totalBytes;
+  }
+
+  /** getExpired
+    * @return messages dropped so far for being past the time to live
+    */
+  public synchronized long getExpired() {
+    return expired;
+  }
+
+  /** run
+    * sweeps the store every minute (every message is already on disk, so the thread can stop with the server at any time)
+    */
+  public void run() {
+    while (true) {
+      try {
+        Thread.sleep(SWEEP_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      sweep();
+    }
+  }
+}
@@ -0,0 +1,315 @@
+/*[MessageHistory.java]
+ * The client's chat history: the latest messages in memory, older ones on disk, shown through a JList
+ * @version 1.0
+ */
+
+//imports
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.swing.AbstractListModel;
+
+/**
+ * MessageHistory
+ * a list model over every message the client has shown, numbered from 0; the last scrollback messages are kept in
+ * a ring in memory, and messages pushed out of the ring are appended to a file on disk as [length: int][UTF-8]
+ * records (messages may contain line breaks)
+ *
+ * the disk is bounded by keeping two files of about half the limit each: once the newer one is full, the older
+ * one is deleted and a new one is started, so between half the limit and the limit of the oldest messages are kept
+ *
+ * the list shows a window of at most 2 * scrollback messages: while following, the latest ones; once the user scrolls
+ * to the top, older pages are read back from the file (a few are cached) and the window moves back a page at a time,
+ * and scrolling to the bottom moves it forward again until it is following the latest messages once more
+ *
+ * every method is called on the Swing event thread
+ */
+class MessageHistory extends AbstractListModel<String> {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * messages read from disk at a time, and pages of them kept in memory
+   */
+  static final int PAGE = 200;
+  private static final int CACHED_PAGES = 8;
+
+  /**
+   * latest messages; ring[(first+i) % ring.length] is message total-count+i
+   */
+  private final String[] ring;
+  private int first = 0;
+  private int count = 0;
+
+  /**
+   * number of messages shown so far; messages before total-count are on disk
+   */
+  private long total = 0;
+
+  /**
+   * messages shown by the list: start, start+1, ..., end-1
+   */
+  private long start = 0;
+  private long end = 0;
+
+  /**
+   * keeps track of whether the window moves along with new messages
+   */
+  private boolean following = true;
+
+  /**
+   * files holding the messages pushed out of the ring: the one being appended to and the one before it (or null),
+   * the number of the first message in the one being appended to, where each page starts in the file holding it, and the most bytes
+   * written to one file
+   */
+  private File file;
+  private File olderFile;
+  private long fileFirst = 0;
+  private DataOutputStream out;
+  private long written = 0;
+  private long[] pageOffsets = new long[64];
+  private final long fileBytes;
+
+  /**
+   * number of the oldest message still kept
+   */
+  private long firstKept = 0;
+
+  /**
+   * pages read back from the file, least recently used first
+   */
+  private LinkedHashMap<Long, String[]> pages = new LinkedHashMap<Long, String[]>(16, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<Long, String[]> eldest) {
+      return size() > CACHED_PAGES;
+    }
+  };
+
+  /** MessageHistory
+    * Constructor - the files are deleted when the client exits
+    * @param scrollback - messages kept in memory
+    * @param diskBytes - most bytes of older messages kept on disk
+    */
+  MessageHistory(int scrollback, long diskBytes) throws IOException {
+    this.ring = new String[Math.max(scrollback, PAGE)];
+    this.fileBytes = Math.max(diskBytes/2, 1);
+    startFile();
+  }
+
+  /** startFile
+    * starts a new file for the messages pushed out of the ring, deleting the older of the two kept so far
+    */
+  private void startFile() throws IOException {
+    if (out != null) {
+      out.close();
+    }
+    if (olderFile != null) {
+      olderFile.delete();
+      firstKept = fileFirst;
+      pages.keySet().removeIf(page -> page < fileFirst/PAGE);
+    }
+
+    olderFile = file;
+    fileFirst = total-count;
+    file = File.createTempFile("duberchat-history", ".log");
+    file.deleteOnExit();
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+    written = 0;
+  }
+
+  /** getSize
+    * @return number of messages shown by the list
+    */
+  public int getSize() {
+    return (int)(end-start);
+  }
+
+  /** getElementAt
+    * @param index - row of the list
+    * @return message shown in the row
+    */
+  public String getElementAt(int index) {
+    return get(start+index);
+  }
+
+  /** isFollowing
+    * @return true if the list shows the latest messages and moves along with new ones
+    */
+  public boolean isFollowing() {
+    return following;
+  }
+
+  /** get
+    * @param number - number of a message
+    * @return the message, read from disk if it is no longer in memory
+    */
+  private String get(long number) {
+    if (number >= total-count) {
+      return ring[(int)((first+number-(total-count)) % ring.length)];
+    }
+
+    int index = (int)(number % PAGE);
+    String[] page = pages.get(number/PAGE);
+    if (page == null || index >= page.length) { //not read yet, or read before the rest of the page was on disk
+      page = readPage(number/PAGE);
+      pages.put(number/PAGE, page);
+    }
+    return page[index];
+  }
+
+  /** add
+    * adds messages after the latest one; the list is told about them once
+    * @param messages - messages to add, oldest first
+    */
+  public void add(ArrayList<String> messages) {
+    if (messages.isEmpty()) {
+      return;
+    }
+
+    for (String message:messages) {
+      if (count == ring.length) { //full; the oldest goes to disk
+        spill(ring[first]);
+        ring[first] = null;
+        first = (first+1) % ring.length;
+        count--;
+      }
+      ring[(first+count) % ring.length] = message;
+      count++;
+      total++;
+    }
+
+    if (following) {
+      long oldEnd = end;
+      end = total;
+      fireIntervalAdded(this, (int)(oldEnd-start), (int)(end-start-1));
+      trimStart(ring.length);
+    } else if (end <= firstKept) { //every row was deleted from disk while the user was reading; show the oldest kept
+      long size = end-start;
+      start = firstKept;
+      end = start+size;
+      fireContentsChanged(this, 0, (int)size-1);
+    } else if (start < firstKept) { //only the rows at the top were deleted
+      int removed = (int)(firstKept-start);
+      start = firstKept;
+      fireIntervalRemoved(this, 0, removed-1);
+    }
+  }
+
+  /** spill
+    * appends a message pushed out of the ring to the file
+    * @param message - the message
+    */
+  private void spill(String message) {
+    long number = total-count;
+
+    try {
+      if (number % PAGE == 0) {
+        if (written >= fileBytes) { //pages never span two files
+          startFile();
+        }
+        int page = (int)(number/PAGE);
+        if (page == pageOffsets.length) {
+          pageOffsets = Arrays.copyOf(pageOffsets, page*2);
+        }
+        pageOffsets[page] = written;
+      }
+      byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+      written += 4+bytes.length;
+    } catch (IOException e) {
+      System.out.println("Failed to save chat history...");
+    }
+  }
+
+  /** readPage
+    * @param page - number of a page whose messages are all or partly on disk
+    * @return the messages of the page that are on disk
+    */
+  private String[] readPage(long page) {
+    long onDisk = total-count;
+    int length = (int)Math.min(PAGE, onDisk-page*PAGE);
+    String[] lines = new String[Math.max(length, 0)];
+
+    try {
+      out.flush();
+      try (RandomAccessFile in = new RandomAccessFile((page*PAGE >= fileFirst) ? file : olderFile, "r")) {
+        in.seek(pageOffsets[(int)page]);
+        DataInputStream records = new DataInputStream(new BufferedInputStream(new FileInputStream(in.getFD())));
+        for (int i = 0; i < lines.length; i++) {
+          byte[] bytes = new byte[records.readInt()];
+          records.readFully(bytes);
+          lines[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("Failed to read chat history...");
+      Arrays.fill(lines, "");
+    }
+    return lines;
+  }
+
+  /** pageOlder
+    * moves the window back by a page, if there are older messages
+    * @return number of rows added at the top of the list
+    */
+  public int pageOlder() {
+    if (start <= firstKept) {
+      return 0;
+    }
+
+    int added = (int)Math.min(PAGE, start-firstKept);
+    start -= added;
+    fireIntervalAdded(this, 0, added-1);
+
+    if (end-start > 2*ring.length) { //drop the newest rows so the window stays bounded
+      long oldEnd = end;
+      end = start+2*ring.length;
+      following = false;
+      fireIntervalRemoved(this, (int)(end-start), (int)(oldEnd-start-1));
+    }
+    return added;
+  }
+
+  /** pageNewer
+    * moves the window forward by a page, following the latest messages again once it reaches them
+    * @return number of rows removed from the top of the list
+    */
+  public int pageNewer() {
+    if (end == total) {
+      following = true;
+      return 0;
+    }
+
+    long oldEnd = end;
+    end = Math.min(total, end+PAGE);
+    following = (end == total);
+    fireIntervalAdded(this, (int)(oldEnd-start), (int)(end-start-1));
+    return trimStart(2*ring.length);
+  }
+
+  /** stopFollowing
+    * keeps the window where it is when new messages arrive (the user scrolled up to read)
+    */
+  public void stopFollowing() {
+    following = false;
+  }
+
+  /** trimStart
+    * drops the oldest rows so the window holds at most the specified number of messages
+    * @param most - most messages in the window
+    * @return number of rows removed from the top of the list
+    */
+  private int trimStart(int most) {
+    if (end-start <= most) {
+      return 0;
+    }
+
+    int removed = (int)(end-start-most);
+    start += removed;
+    fireIntervalRemoved(this, 0, removed-1);
+    return removed;
+  }
+}
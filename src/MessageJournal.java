@@ -0,0 +1,446 @@
+/*[MessageJournal.java]
+ * An append-only, segmented on-disk journal of the messages users send
+ * @version 1.0
+ */
+
+//imports
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.TreeMap;
+
+/**
+ * MessageJournal
+ * keeps every broadcast and whisper in memory-mapped segment files so that recent history can be replayed to
+ * users who log in, and survives a restart; every message gets the next offset (0, 1, 2, ...)
+ *
+ * each segment is a pair of files named by the offset of its first message:
+ *   <offset>.log - records of [body length: int][time in ms: long][type: byte][body: UTF-8 "from\0to\0line"]
+ *   <offset>.idx - for each message in the segment, 1 + the position of its record in the .log file (0 = none)
+ * so finding a message by offset is one read of the index, and finding the first message after some time is
+ * a binary search over the offsets; appending only copies bytes into the mapped file, and a background thread
+ * forces the files to disk every few ms, so many messages share one sync (group commit)
+ *
+ * the lock is only held to copy a message in, or to note what has to be read or forced: the background thread forces
+ * the files (including a segment just rolled away from) and recent() reads the messages without holding it, and a
+ * segment dropped past the limit is only deleted by the background thread once no recent() call can be reading it
+ *
+ * settings (--name=value):
+ *   journal             - directory of the journal; no journal is kept unless this is given
+ *   journal-segment-mb  - size of each segment file in MB (default 16)
+ *   journal-segments    - number of segments kept; older ones are deleted (default 8)
+ *   journal-sync-ms     - how often the journal is forced to disk (default 100)
+ */
+class MessageJournal implements Runnable {
+
+  /**
+   * length of a record header (body length, time, type)
+   */
+  private static final int HEADER_LENGTH = 13;
+
+  /**
+   * Entry
+   * a message read back from the journal
+   */
+  static class Entry {
+    final long offset;
+    final long time;
+    final byte type;
+    final String from;
+    final String to;
+    final String line;
+
+    Entry(long offset, long time, byte type, String from, String to, String line) {
+      this.offset = offset;
+      this.time = time;
+      this.type = type;
+      this.from = from;
+      this.to = to;
+      this.line = line;
+    }
+  }
+
+  /**
+   * Segment
+   * one .log file and its .idx file, both mapped into memory
+   */
+  private static class Segment {
+    final long base;
+    final File logFile;
+    final File indexFile;
+    MappedByteBuffer log;
+    MappedByteBuffer index;
+    int count;        //messages in this segment
+    int writePosition; //end of the last record in the .log file
+
+    Segment(File dir, long base, int logBytes) throws IOException {
+      this.base = base;
+      this.logFile = new File(dir, String.format("%020d.log", base));
+      this.indexFile = new File(dir, String.format("%020d.idx", base));
+      this.log = map(logFile, logBytes);
+      this.index = map(indexFile, logBytes/HEADER_LENGTH*4); //room for the most records that can fit in the log
+    }
+
+    /** recover
+      * finds the records already in the segment by walking the log, rewriting the index as it goes
+      * (a crash can leave a record whose index entry was never written)
+      */
+    void recover() {
+      int position = 0;
+
+      while (position+HEADER_LENGTH <= log.capacity() && (count+1)*4 <= index.capacity()) {
+        int length = log.getInt(position);
+
+        if (length <= 0 || position+HEADER_LENGTH+length > log.capacity()) {
+          break; //zeros past the last record
+        }
+        index.putInt(count*4, position+1);
+        count++;
+        position += HEADER_LENGTH+length;
+      }
+      writePosition = position;
+    }
+
+    /** fits
+      * @param length - length of a record body
+      * @return true if a record with this body still fits in the segment
+      */
+    boolean fits(int length) {
+      return writePosition+HEADER_LENGTH+length <= log.capacity() && (count+1)*4 <= index.capacity();
+    }
+
+    /** positionOf
+      * @param offset - offset of a message in this segment
+      * @return position of its record in the .log file
+      */
+    int positionOf(long offset) {
+      return index.getInt((int)(offset-base)*4)-1;
+    }
+
+    /** timeOf
+      * @param offset - offset of a message in this segment
+      * @return time the message was sent
+      */
+    long timeOf(long offset) {
+      return log.getLong(positionOf(offset)+4);
+    }
+  }
+
+  /**
+   * directory holding the segment files
+   */
+  private final File dir;
+
+  /**
+   * size of each segment file in bytes, and the number of segments kept
+   */
+  private final int segmentBytes;
+  private final int maxSegments;
+
+  /**
+   * how often the journal is forced to disk in ms
+   */
+  private final long syncMillis;
+
+  /**
+   * segments by the offset of their first message; the last one is written to
+   */
+  private TreeMap<Long, Segment> segments = new TreeMap<>();
+
+  /**
+   * segment being written to
+   */
+  private Segment active;
+
+  /**
+   * offset the next message gets
+   */
+  private long nextOffset = 0;
+
+  /**
+   * keeps track of whether anything was appended since the journal was last forced to disk
+   */
+  private boolean dirty = false;
+
+  /**
+   * segments rolled away from that have not been forced to disk since, and segments dropped past the limit whose
+   * files have not been deleted yet
+   */
+  private ArrayList<Segment> rolled = new ArrayList<>();
+  private ArrayList<Segment> dropped = new ArrayList<>();
+
+  /**
+   * number of recent() calls reading the segments outside the lock
+   */
+  private int readers = 0;
+
+  /**
+   * keeps track of whether the journal has been closed
+   */
+  private volatile boolean closed = false;
+
+  /** MessageJournal
+    * Constructor - opens (or creates) the journal and starts syncing it in the background
+    * @param options - settings from the command line (see above)
+    */
+  MessageJournal(ChatServer.ServerOptions options) throws IOException {
+    this(new File(options.get("journal", "journal")),
+         options.getInt("journal-segment-mb", 16)*1024*1024,
+         options.getInt("journal-segments", 8),
+         options.getInt("journal-sync-ms", 100));
+  }
+
+  /** MessageJournal
+    * Constructor - opens (or creates) the journal and starts syncing it in the background
+    * @param dir - directory of the journal
+    * @param segmentBytes - size of each segment file in bytes
+    * @param maxSegments - number of segments kept
+    * @param syncMillis - how often the journal is forced to disk in ms
+    */
+  MessageJournal(File dir, int segmentBytes, int maxSegments, long syncMillis) throws IOException {
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = Math.max(maxSegments, 1);
+    this.syncMillis = syncMillis;
+
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create journal directory "+dir);
+    }
+
+    //reopen the segments already on disk, oldest first
+    File[] files = dir.listFiles((d, name) -> name.matches("\\d{20}\\.log"));
+    if (files != null) {
+      for (File file:files) {
+        long base = Long.parseLong(file.getName().substring(0, 20));
+        Segment segment = new Segment(dir, base, (int)Math.max(file.length(), segmentBytes));
+        segment.recover();
+        segments.put(base, segment);
+      }
+    }
+
+    if (segments.isEmpty()) {
+      active = new Segment(dir, 0, segmentBytes);
+      segments.put(0L, active);
+    } else {
+      active = segments.lastEntry().getValue();
+      nextOffset = active.base+active.count;
+    }
+
+    Thread syncer = new Thread(this, "journal-sync");
+    syncer.setDaemon(true);
+    syncer.start();
+  }
+
+  /** map
+    * @param file - file to map (created, and grown to the length, if needed)
+    * @param length - length mapped in bytes
+    * @return the file mapped into memory for reading and writing
+    */
+  private static MappedByteBuffer map(File file, int length) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, length); //the mapping stays valid after the channel is closed
+    }
+  }
+
+  /** append
+    * adds a message to the journal; only copies it into the mapped segment, the sync happens in the background
+    * @param type - WireProtocol.BROADCAST or WireProtocol.WHISPER
+    * @param from - user who sent it
+    * @param to - user it was sent to, "#room" for a room, or "*" for everyone
+    * @param line - message as it was shown to users
+    * @return offset of the message
+    */
+  public synchronized long append(byte type, String from, String to, String line) throws IOException {
+    byte[] body = (from+"\0"+to+"\0"+line).getBytes(WireProtocol.UTF8);
+
+    if (!active.fits(body.length)) {
+      roll(body.length);
+    }
+
+    int position = active.writePosition;
+    active.log.putLong(position+4, System.currentTimeMillis());
+    active.log.put(position+12, type);
+    active.log.put(position+HEADER_LENGTH, body);
+    active.log.putInt(position, body.length); //written last, so a record is only seen once it is complete
+    active.index.putInt(active.count*4, position+1);
+
+    active.writePosition = position+HEADER_LENGTH+body.length;
+    active.count++;
+    dirty = true;
+    return nextOffset++;
+  }
+
+  /** roll
+    * starts a new segment, dropping the oldest ones past the limit; the old segment is forced, and the dropped ones
+    * deleted, by the background thread
+    * @param length - length of the record that did not fit
+    */
+  private void roll(int length) throws IOException {
+    if (dirty) {
+      rolled.add(active);
+    }
+
+    active = new Segment(dir, nextOffset, Math.max(segmentBytes, HEADER_LENGTH+length));
+    segments.put(active.base, active);
+
+    while (segments.size() > maxSegments) {
+      dropped.add(segments.pollFirstEntry().getValue());
+    }
+  }
+
+  /** recent
+    * @param count - most messages to return
+    * @param sinceMillis - time before which messages are left out (0 to only go by count)
+    * @param user - user the messages are for; whispers between other users and messages to rooms are left out
+    * @return the last count messages for the user sent at or after the time, oldest first
+    */
+  public ArrayList<Entry> recent(int count, long sinceMillis, String user) {
+    ArrayList<Entry> entries = new ArrayList<>();
+    TreeMap<Long, Segment> view;
+    long end;
+
+    synchronized (this) { //the messages before end are complete and stay readable until readers is back down
+      view = new TreeMap<>(segments);
+      end = nextOffset;
+      readers++;
+    }
+
+    try {
+      long start = view.firstKey();
+
+      if (sinceMillis > 0) {
+        start = firstAtOrAfter(view, sinceMillis, start, end);
+      }
+
+      //newest first, so messages the user cannot see do not use up the count
+      for (long offset = end-1; offset >= start && entries.size() < count; offset--) {
+        Entry entry = read(view, offset);
+
+        if (entry.to.equals("*") || entry.from.equals(user) || entry.to.equals(user)) {
+          entries.add(entry);
+        }
+      }
+      Collections.reverse(entries);
+    } finally {
+      synchronized (this) {
+        readers--;
+      }
+    }
+    return entries;
+  }
+
+  /** firstAtOrAfter
+    * binary search over the offsets (times only go up)
+    * @param view - segments to search
+    * @param millis - time to look for
+    * @param low - first offset to consider
+    * @param high - offset past the last message to consider
+    * @return offset of the first message sent at or after the time, or high if there is none
+    */
+  private static long firstAtOrAfter(TreeMap<Long, Segment> view, long millis, long low, long high) {
+    while (low < high) {
+      long middle = (low+high) >>> 1;
+
+      if (segmentOf(view, middle).timeOf(middle) < millis) {
+        low = middle+1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /** segmentOf
+    * @param view - segments to look in
+    * @param offset - offset of a message in one of them
+    * @return segment holding the message
+    */
+  private static Segment segmentOf(TreeMap<Long, Segment> view, long offset) {
+    return view.floorEntry(offset).getValue();
+  }
+
+  /** read
+    * @param view - segments to look in
+    * @param offset - offset of a message in one of them
+    * @return the message
+    */
+  private static Entry read(TreeMap<Long, Segment> view, long offset) {
+    Segment segment = segmentOf(view, offset);
+    int position = segment.positionOf(offset);
+    int length = segment.log.getInt(position);
+    byte[] body = new byte[length];
+    segment.log.get(position+HEADER_LENGTH, body);
+
+    String text = new String(body, WireProtocol.UTF8);
+    int fromEnd = text.indexOf('\0');
+    int toEnd = text.indexOf('\0', fromEnd+1);
+    return new Entry(offset, segment.log.getLong(position+4), segment.log.get(position+12),
+                     text.substring(0, fromEnd), text.substring(fromEnd+1, toEnd), text.substring(toEnd+1));
+  }
+
+  /** size
+    * @return number of messages still in the journal
+    */
+  public synchronized long size() {
+    return nextOffset-segments.firstKey();
+  }
+
+  /** sync
+    * forces everything appended so far to disk, then deletes the dropped segments no one can be reading;
+    * appends go on meanwhile
+    */
+  public void sync() {
+    ArrayList<Segment> toForce;
+    ArrayList<Segment> toDelete = null;
+
+    synchronized (this) {
+      toForce = rolled;
+      rolled = new ArrayList<>();
+      if (dirty) {
+        toForce.add(active);
+        dirty = false; //an append while forcing sets it again, for the next sync
+      }
+      if (readers == 0 && !dropped.isEmpty()) {
+        toDelete = dropped;
+        dropped = new ArrayList<>();
+      }
+    }
+
+    for (Segment segment:toForce) {
+      segment.log.force();
+      segment.index.force();
+    }
+
+    if (toDelete != null) {
+      for (Segment segment:toDelete) {
+        segment.logFile.delete(); //the mapping is released once nothing refers to it
+        segment.indexFile.delete();
+      }
+    }
+  }
+
+  /** run
+    * forces the journal to disk every few ms until it is closed
+    */
+  public void run() {
+    while (!closed) {
+      try {
+        Thread.sleep(syncMillis);
+      } catch (InterruptedException e) {
+        return;
+      }
+      sync();
+    }
+  }
+
+  /** close
+    * forces the journal to disk and stops syncing it
+    */
+  public void close() {
+    closed = true;
+    sync();
+  }
+}
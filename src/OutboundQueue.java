@@ -0,0 +1,280 @@
+/*[OutboundQueue.java]
+ * A bounded queue of messages waiting to be written to one client
+ * @version 1.0
+ */
+
+//imports
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * OutboundQueue
+ * holds the messages for one client so that senders never wait on that client's socket;
+ * when the client falls behind and the queue is full, the slow consumer policy decides what happens
+ */
+class OutboundQueue<T> {
+
+  /**
+   * Policy
+   * what to do when a message is added to a full queue
+   *   DROP_OLDEST - drop the oldest queued message
+   *   COALESCE    - keep only the newest replaceable message (user lists), then drop the oldest if still full
+   *   DISCONNECT  - refuse the message so the client can be disconnected
+   */
+  enum Policy {
+    DROP_OLDEST, COALESCE, DISCONNECT;
+
+    /** parse
+      * @param name - policy name from the command line (drop-oldest, coalesce, disconnect)
+      * @return the matching policy
+      */
+    static Policy parse(String name) {
+      return valueOf(name.toUpperCase().replace('-', '_'));
+    }
+  }
+
+  /**
+   * ring of queued messages, oldest at head; kept as arrays so queueing a message does not allocate
+   */
+  private Object[] items;
+
+  /**
+   * replaceable[i] is true if a newer replaceable message makes items[i] unnecessary
+   */
+  private boolean[] replaceable;
+
+  /**
+   * index of the oldest queued message
+   */
+  private int head = 0;
+
+  /**
+   * number of queued messages
+   */
+  private int count = 0;
+
+  /**
+   * most messages that can be queued
+   */
+  private final int capacity;
+
+  /**
+   * policy used when the queue is full
+   */
+  private final Policy policy;
+
+  /**
+   * keeps track of whether a writer is currently draining the queue
+   */
+  private boolean writing = false;
+
+  /**
+   * number of messages dropped because the queue was full
+   */
+  private long dropped = 0;
+
+  /**
+   * messages dropped by this and every other queue sharing the counter
+   */
+  private final LongAdder droppedTotal;
+
+  /** OutboundQueue
+    * Constructor
+    * @param capacity - most messages that can be queued
+    * @param policy - policy used when the queue is full
+    */
+  OutboundQueue(int capacity, Policy policy) {
+    this(capacity, policy, new LongAdder());
+  }
+
+  /** OutboundQueue
+    * Constructor
+    * @param capacity - most messages that can be queued
+    * @param policy - policy used when the queue is full
+    * @param droppedTotal - counter shared by many queues that every dropped message is added to
+    */
+  OutboundQueue(int capacity, Policy policy, LongAdder droppedTotal) {
+    this.capacity = capacity;
+    this.policy = policy;
+    this.droppedTotal = droppedTotal;
+    this.items = new Object[Math.min(capacity, 16)]; //grows up to capacity as needed
+    this.replaceable = new boolean[items.length];
+  }
+
+  /** offer
+    * adds a message to the queue, applying the policy if the queue is full
+    * @param item - message to add
+    * @param replaceable - true if a newer replaceable message makes this one unnecessary (e.g. a user list)
+    * @return false if the queue is full and the policy is to disconnect, true otherwise
+    */
+  public synchronized boolean offer(T item, boolean replaceable) {
+    if (replaceable && policy == Policy.COALESCE) {
+      removeReplaceable();
+    }
+
+    if (count >= capacity) {
+      if (policy == Policy.DISCONNECT) {
+        droppedTotal.increment();
+        return false;
+      }
+      if (policy == Policy.COALESCE) {
+        removeReplaceable();
+      }
+      while (count >= capacity) {
+        take();
+        dropped++;
+        droppedTotal.increment();
+      }
+    }
+
+    if (count == items.length) {
+      grow();
+    }
+
+    int tail = (head+count) % items.length;
+    items[tail] = item;
+    this.replaceable[tail] = replaceable;
+    count++;
+    return true;
+  }
+
+  /** grow
+    * doubles the ring (up to the capacity), keeping the oldest message at index 0
+    */
+  private void grow() {
+    int length = Math.min(items.length*2, capacity);
+    Object[] newItems = new Object[length];
+    boolean[] newReplaceable = new boolean[length];
+
+    for (int i = 0; i < count; i++) {
+      newItems[i] = items[(head+i) % items.length];
+      newReplaceable[i] = replaceable[(head+i) % items.length];
+    }
+    items = newItems;
+    replaceable = newReplaceable;
+    head = 0;
+  }
+
+  /** removeReplaceable
+    * drops every queued replaceable message, keeping the others in order
+    */
+  private void removeReplaceable() {
+    int kept = 0;
+
+    for (int i = 0; i < count; i++) {
+      int from = (head+i) % items.length;
+
+      if (replaceable[from]) {
+        dropped++;
+        droppedTotal.increment();
+      } else {
+        int to = (head+kept) % items.length;
+        items[to] = items[from];
+        replaceable[to] = false;
+        kept++;
+      }
+    }
+
+    for (int i = kept; i < count; i++) {
+      items[(head+i) % items.length] = null;
+    }
+    count = kept;
+  }
+
+  /** take
+    * removes the oldest queued message; only called while holding the lock
+    * @return the oldest queued message, or null if the queue is empty
+    */
+  @SuppressWarnings("unchecked")
+  private T take() {
+    if (count == 0) {
+      return null;
+    }
+    T item = (T)items[head];
+    items[head] = null;
+    head = (head+1) % items.length;
+    count--;
+    return item;
+  }
+
+  /** poll
+    * @return the oldest queued message, or null if the queue is empty
+    */
+  public synchronized T poll() {
+    return take();
+  }
+
+  /** claimWriter
+    * makes the caller the writer for this queue if there are messages and no other writer
+    * @return true if the caller should start draining the queue
+    */
+  public synchronized boolean claimWriter() {
+    if (writing || count == 0) {
+      return false;
+    }
+    writing = true;
+    return true;
+  }
+
+  /** pollOrRelease
+    * used by the writer; returns the next message or gives up being the writer once the queue is empty
+    * @return the oldest queued message, or null if the queue is empty
+    */
+  public synchronized T pollOrRelease() {
+    T item = take();
+
+    if (item == null) {
+      writing = false;
+      notifyAll();
+    }
+    return item;
+  }
+
+  /** awaitDrained
+    * waits for the writer to empty the queue
+    * @param millis - most time to wait in ms
+    * @return true if the queue was emptied in time
+    */
+  public synchronized boolean awaitDrained(long millis) {
+    long deadline = System.currentTimeMillis()+millis;
+
+    try {
+      while (writing || count > 0) {
+        long left = deadline-System.currentTimeMillis();
+
+        if (left <= 0 || !writing) {
+          return false; //out of time, or nobody is writing the rest
+        }
+        wait(left);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return true;
+  }
+
+  /** clear
+    * drops every queued message and releases the writer, e.g. once the socket has failed
+    */
+  public synchronized void clear() {
+    while (take() != null) {
+      //drop it
+    }
+    writing = false;
+    notifyAll();
+  }
+
+  /** size
+    * @return number of queued messages
+    */
+  public synchronized int size() {
+    return count;
+  }
+
+  /** getDropped
+    * @return number of messages dropped because the queue was full
+    */
+  public synchronized long getDropped() {
+    return dropped;
+  }
+}
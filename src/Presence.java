@@ -0,0 +1,129 @@
+/*[Presence.java]
+ * Keeps the server's presence version and the recent join/leave/status changes
+ * @version 1.0
+ */
+
+//imports
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Presence
+ * numbers every presence change and remembers the most recent ones so that a client
+ * that already has the list up to some version can be sent only what changed since
+ *
+ * messages to clients that asked for deltas with <?><presence [version]>
+ *   |+|version|user|status   user joined
+ *   |-|version|user          user left
+ *   |~|version|user|status   user changed status
+ *   |=|version|user list     full list in the usual "user|status/" form
+ * (no other server message starts with '|' since user names cannot contain it)
+ *
+ * a version is a random epoch picked when the server starts (high 32 bits) and a count of changes (low 32 bits),
+ * so a version from before a restart, or from another node of a cluster, never matches this history; a client
+ * asking with such a version gets the full list
+ */
+class Presence {
+
+  /**
+   * bits of a version holding the count of changes
+   */
+  private static final int EPOCH_SHIFT = 32;
+
+  /**
+   * version before the first change: this server's epoch with a count of 0
+   */
+  private final long first = ThreadLocalRandom.current().nextLong(1, 1L << 31) << EPOCH_SHIFT;
+
+  /**
+   * version of the latest change
+   */
+  private long version = first;
+
+  /**
+   * most recent changes; history[(int)(v % history.length)] is the message for version v
+   */
+  private String[] history;
+
+  /**
+   * user each change in the history is about, so a client is not told about itself
+   */
+  private String[] historyUsers;
+
+  /** Presence
+    * Constructor
+    * @param historySize - number of recent changes remembered for resyncing clients
+    */
+  Presence(int historySize) {
+    this.history = new String[historySize];
+    this.historyUsers = new String[historySize];
+  }
+
+  /** joined
+    * @param user - user that joined
+    * @param status - status of the user
+    * @return message telling clients the user joined
+    */
+  public synchronized String joined(String user, String status) {
+    return record(user, "|+|"+(version+1)+"|"+user+"|"+status);
+  }
+
+  /** left
+    * @param user - user that left
+    * @return message telling clients the user left
+    */
+  public synchronized String left(String user) {
+    return record(user, "|-|"+(version+1)+"|"+user);
+  }
+
+  /** changed
+    * @param user - user whose status changed
+    * @param status - new status of the user
+    * @return message telling clients the user's status changed
+    */
+  public synchronized String changed(String user, String status) {
+    return record(user, "|~|"+(version+1)+"|"+user+"|"+status);
+  }
+
+  /** snapshot
+    * @param userList - full user list in the usual form
+    * @return message giving a client the full list as of the current version
+    */
+  public synchronized String snapshot(String userList) {
+    return "|=|"+version+"|"+userList;
+  }
+
+  /** record
+    * keeps a change in the history under the next version
+    * @param user - user the change is about
+    * @param delta - message describing the change
+    * @return the message
+    */
+  private String record(String user, String delta) {
+    version++;
+    history[(int)(version % history.length)] = delta;
+    historyUsers[(int)(version % history.length)] = user;
+    return delta;
+  }
+
+  /** since
+    * @param from - last version the client has
+    * @param user - the client's own user name; changes about it are left out
+    * @return changes after the specified version, or null if they are no longer all remembered or the version is
+    *         from another epoch (before a restart, or another node)
+    */
+  public synchronized ArrayList<String> since(long from, String user) {
+    if (from < first || from > version || version-from > history.length) {
+      return null;
+    }
+
+    ArrayList<String> deltas = new ArrayList<>();
+
+    for (long v = from+1; v <= version; v++) {
+      if (!historyUsers[(int)(v % history.length)].equals(user)) {
+        deltas.add(history[(int)(v % history.length)]);
+      }
+    }
+    return deltas;
+  }
+}
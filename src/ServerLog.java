@@ -0,0 +1,402 @@
+/*[ServerLog.java]
+ * Asynchronous, batched logging for the server in JSON lines
+ * @version 1.0
+ */
+
+//imports
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ServerLog
+ * threads that log only put a record in a lock-free ring and return; one background thread takes the records
+ * out in batches, formats them as JSON lines and writes them to the console or to a file that is rotated once
+ * it grows past a size; if the ring is full the record is dropped and counted rather than making the caller wait
+ *
+ * each line looks like {"ts":"2026-01-01T12:00:00.000Z","level":"INFO","client":3,"msg":"User <bob> has logged in"}
+ * ("client" is left out for server-wide records, "error" holds the stack trace of an exception)
+ *
+ * settings (--name=value):
+ *   log-level - off, error, warn, info (default) or debug; every message from a client is logged at debug
+ *   log-file  - file to write to (default: the console)
+ *   log-size  - size in MB at which the file is rotated (default 10)
+ *   log-files - number of rotated files kept as file.1, file.2, ... (default 5)
+ */
+class ServerLog implements Runnable {
+
+  /**
+   * Level
+   * how important a record is; a log keeps the records at or above its level
+   */
+  enum Level {
+    OFF, ERROR, WARN, INFO, DEBUG;
+
+    /** parse
+      * @param name - level name from the command line
+      * @return the matching level
+      */
+    static Level parse(String name) {
+      return valueOf(name.toUpperCase());
+    }
+  }
+
+  /**
+   * Record
+   * one thing that happened, kept as it was logged until the writer formats it
+   */
+  private static class Record {
+    final long time;
+    final Level level;
+    final int client;
+    final String message;
+    final Throwable error;
+
+    Record(Level level, int client, String message, Throwable error) {
+      this.time = System.currentTimeMillis();
+      this.level = level;
+      this.client = client;
+      this.message = message;
+      this.error = error;
+    }
+  }
+
+  /**
+   * most records written in one batch
+   */
+  private static final int BATCH = 256;
+
+  /**
+   * ring of records; slot i is free for the producer at position p when sequences[i] == p,
+   * and holds a record for the consumer at position p when sequences[i] == p+1
+   */
+  private final Object[] ring;
+  private final AtomicLongArray sequences;
+  private final int mask;
+
+  /**
+   * next position producers claim
+   */
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * next position the writer takes (only used by the writer)
+   */
+  private long head = 0;
+
+  /**
+   * records dropped because the ring was full
+   */
+  private final LongAdder dropped = new LongAdder();
+
+  /**
+   * records below this level are not logged
+   */
+  private final Level level;
+
+  /**
+   * file written to, or null for the console
+   */
+  private final File file;
+
+  /**
+   * size in bytes at which the file is rotated, and the number of old files kept
+   */
+  private final long maxBytes;
+  private final int maxFiles;
+
+  /**
+   * where formatted lines go, and how many bytes have gone to the current file
+   */
+  private Writer out;
+  private long written;
+
+  /**
+   * thread that writes the records; parked while the ring is empty
+   */
+  private final Thread writer;
+
+  /**
+   * keeps track of whether the writer should stop once the ring is empty
+   */
+  private volatile boolean stopping = false;
+
+  /** ServerLog
+    * Constructor - starts the writer thread
+    * @param options - settings from the command line (see above)
+    */
+  ServerLog(ChatServer.ServerOptions options) {
+    this(Level.parse(options.get("log-level", "info")),
+         options.get("log-file", null),
+         options.getInt("log-size", 10)*1024L*1024L,
+         options.getInt("log-files", 5),
+         8192);
+  }
+
+  /** ServerLog
+    * Constructor - starts the writer thread
+    * @param level - lowest level logged
+    * @param fileName - file to write to, or null for the console
+    * @param maxBytes - size in bytes at which the file is rotated
+    * @param maxFiles - number of rotated files kept
+    * @param capacity - records the ring holds (rounded up to a power of two)
+    */
+  ServerLog(Level level, String fileName, long maxBytes, int maxFiles, int capacity) {
+    this.level = level;
+    this.file = (fileName == null) ? null : new File(fileName);
+    this.maxBytes = maxBytes;
+    this.maxFiles = maxFiles;
+
+    int size = Integer.highestOneBit(Math.max(capacity-1, 1))*2;
+    this.ring = new Object[size];
+    this.sequences = new AtomicLongArray(size);
+    this.mask = size-1;
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+
+    try {
+      open();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not open log file "+fileName, e);
+    }
+
+    writer = new Thread(this, "log-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /** isEnabled
+    * @param level - level of a record
+    * @return true if records at this level are logged (lets callers skip building the message)
+    */
+  public boolean isEnabled(Level level) {
+    return level != Level.OFF && level.ordinal() <= this.level.ordinal();
+  }
+
+  /** log
+    * @param level - level of the record
+    * @param client - number of the client the record is about, or 0 for the whole server
+    * @param message - what happened
+    * @param error - exception that caused it, or null
+    */
+  public void log(Level level, int client, String message, Throwable error) {
+    if (!isEnabled(level)) {
+      return;
+    }
+
+    Record record = new Record(level, client, message, error);
+
+    while (true) {
+      long position = tail.get();
+      int index = (int)(position & mask);
+      long sequence = sequences.get(index);
+
+      if (sequence == position) { //slot is free
+        if (tail.compareAndSet(position, position+1)) {
+          ring[index] = record;
+          sequences.lazySet(index, position+1); //hands the record to the writer
+          break;
+        }
+      } else if (sequence < position) { //writer has not taken this slot yet; ring is full
+        dropped.increment();
+        return;
+      }
+      //another producer claimed the position first; try the next one
+    }
+
+    if (level == Level.ERROR) {
+      LockSupport.unpark(writer); //errors go out right away
+    }
+  }
+
+  /**
+   * shorthands for log
+   */
+  public void error(String message, Throwable error) {
+    log(Level.ERROR, 0, message, error);
+  }
+
+  public void error(int client, String message, Throwable error) {
+    log(Level.ERROR, client, message, error);
+  }
+
+  public void warn(String message) {
+    log(Level.WARN, 0, message, null);
+  }
+
+  public void warn(int client, String message) {
+    log(Level.WARN, client, message, null);
+  }
+
+  public void info(String message) {
+    log(Level.INFO, 0, message, null);
+  }
+
+  public void info(int client, String message) {
+    log(Level.INFO, client, message, null);
+  }
+
+  public void debug(int client, String message) {
+    log(Level.DEBUG, client, message, null);
+  }
+
+  /** getDropped
+    * @return number of records dropped because the ring was full
+    */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  /** take
+    * removes the oldest record from the ring (writer only)
+    * @return the record, or null if the ring is empty
+    */
+  private Record take() {
+    int index = (int)(head & mask);
+
+    if (sequences.get(index) != head+1) {
+      return null;
+    }
+
+    Record record = (Record)ring[index];
+    ring[index] = null;
+    sequences.lazySet(index, head+mask+1); //free for the producer one lap later
+    head++;
+    return record;
+  }
+
+  /** run
+    * the writer: writes batches of records, then waits briefly for more
+    */
+  public void run() {
+    StringBuilder line = new StringBuilder(256);
+
+    while (true) {
+      boolean wrote = false;
+
+      try {
+        Record record;
+        for (int i = 0; i < BATCH && (record = take()) != null; i++) {
+          line.setLength(0);
+          format(record, line);
+          out.write(line.toString());
+          written += line.length();
+          wrote = true;
+        }
+        if (wrote) {
+          out.flush(); //one flush per batch
+          if (file != null && written >= maxBytes) {
+            rotate();
+          }
+        }
+      } catch (IOException e) {
+        System.err.println("Could not write log: "+e.getMessage()); //nowhere else to report it
+      }
+
+      if (!wrote) {
+        if (stopping) {
+          return;
+        }
+        LockSupport.parkNanos(this, 10000000L); //10 ms
+      }
+    }
+  }
+
+  /** format
+    * @param record - record to format
+    * @param line - builder the JSON line is added to
+    */
+  private static void format(Record record, StringBuilder line) {
+    line.append("{\"ts\":\"").append(Instant.ofEpochMilli(record.time)).append("\",\"level\":\"").append(record.level).append('"');
+
+    if (record.client != 0) {
+      line.append(",\"client\":").append(record.client);
+    }
+    line.append(",\"msg\":");
+    quote(record.message, line);
+
+    if (record.error != null) {
+      StringWriter trace = new StringWriter();
+      record.error.printStackTrace(new PrintWriter(trace));
+      line.append(",\"error\":");
+      quote(trace.toString(), line);
+    }
+    line.append("}\n");
+  }
+
+  /** quote
+    * @param text - text to add as a JSON string
+    * @param line - builder it is added to
+    */
+  private static void quote(String text, StringBuilder line) {
+    line.append('"');
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+
+      if (c == '"' || c == '\\') {
+        line.append('\\').append(c);
+      } else if (c == '\n') {
+        line.append("\\n");
+      } else if (c == '\r') {
+        line.append("\\r");
+      } else if (c == '\t') {
+        line.append("\\t");
+      } else if (c < ' ') {
+        line.append(String.format("\\u%04x", (int)c));
+      } else {
+        line.append(c);
+      }
+    }
+    line.append('"');
+  }
+
+  /** open
+    * opens the file (appending) or the console for writing
+    */
+  private void open() throws IOException {
+    if (file == null) {
+      out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 65536);
+      written = 0;
+    } else {
+      out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8), 65536);
+      written = file.length();
+    }
+  }
+
+  /** rotate
+    * renames file to file.1 (and file.1 to file.2, ...; the oldest is deleted) and starts a new file
+    */
+  private void rotate() throws IOException {
+    out.close();
+
+    new File(file.getPath()+"."+maxFiles).delete();
+    for (int i = maxFiles-1; i >= 1; i--) {
+      new File(file.getPath()+"."+i).renameTo(new File(file.getPath()+"."+(i+1)));
+    }
+    if (maxFiles > 0) {
+      file.renameTo(new File(file.getPath()+".1"));
+    } else {
+      file.delete();
+    }
+    open();
+  }
+
+  /** close
+    * writes every record logged so far and stops the writer (the server calls this once it has shut down)
+    */
+  public void close() {
+    stopping = true;
+    LockSupport.unpark(writer);
+
+    try {
+      writer.join(2000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,270 @@
+/*[ServerMetrics.java]
+ * Counters, latency histograms and gauges kept by the server, readable over JMX and as plain text
+ * @version 1.0
+ */
+
+//imports
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import javax.management.*;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * ServerMetrics
+ * a registry of named metrics; the hot paths only touch a LongAdder or a LatencyHistogram kept in a field,
+ * and gauges are only computed when someone reads them
+ *
+ * read with any JMX console (attributes of DuberChat:type=ChatServer), or as plain text from
+ * http://127.0.0.1:port/metrics when the server is started with --metrics-port=port; the text is one
+ * "name value" line per metric, histograms as name{quantile="0.99"} lines in ns plus name_count and name_max
+ */
+class ServerMetrics implements DynamicMBean {
+
+  /**
+   * counters by name
+   */
+  private LinkedHashMap<String, LongAdder> counters = new LinkedHashMap<>();
+
+  /**
+   * histograms by name
+   */
+  private LinkedHashMap<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+
+  /**
+   * gauges by name
+   */
+  private LinkedHashMap<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+  /**
+   * gauges with one value per label (e.g. per client) by name; only in the text output
+   */
+  private LinkedHashMap<String, Supplier<Map<String, Long>>> families = new LinkedHashMap<>();
+
+  /**
+   * percentiles reported for every histogram
+   */
+  private static final double[] QUANTILES = {50, 90, 99, 99.9};
+  private static final String[] QUANTILE_LABELS = {"0.5", "0.9", "0.99", "0.999"};
+
+  /**
+   * counters kept by the server
+   */
+  final LongAdder connections = counter("connections_total");
+  final LongAdder logins = counter("logins_total");
+  final LongAdder broadcasts = counter("messages_broadcast_total");
+  final LongAdder whispers = counter("messages_whisper_total");
+  final LongAdder roomMessages = counter("messages_room_total");
+  final LongAdder statusMessages = counter("messages_status_total");
+  final LongAdder droppedSends = counter("dropped_sends_total");
+  final LongAdder slowDisconnects = counter("slow_disconnects_total");
+  final LongAdder timeouts = counter("timeouts_total");
+  final LongAdder socketWrites = counter("socket_writes_total");
+  final LongAdder throttledBroadcasts = counter("throttled_broadcast_total");
+  final LongAdder throttledWhispers = counter("throttled_whisper_total");
+  final LongAdder throttledStatus = counter("throttled_status_total");
+  final LongAdder deflateInput = counter("deflate_input_bytes_total");
+  final LongAdder deflateOutput = counter("deflate_output_bytes_total");
+  final LongAdder deflateSaved = counter("deflate_saved_bytes_total");
+  final LongAdder mailboxStored = counter("mailbox_stored_total");
+  final LongAdder mailboxRefused = counter("mailbox_refused_total");
+  final LongAdder mailboxDelivered = counter("mailbox_delivered_total");
+
+  /**
+   * time in ns to parse a line, to handle a message once parsed (including its fan-out), to queue a message for every
+   * client, and to compress a frame (once per message, however many clients it goes to)
+   */
+  final LatencyHistogram parse = histogram("parse_nanos");
+  final LatencyHistogram route = histogram("route_nanos");
+  final LatencyHistogram fanOut = histogram("fanout_nanos");
+  final LatencyHistogram deflate = histogram("deflate_nanos");
+
+  /** counter
+    * @param name - name of the counter
+    * @return a new counter registered under the name
+    */
+  public synchronized LongAdder counter(String name) {
+    LongAdder counter = new LongAdder();
+    counters.put(name, counter);
+    return counter;
+  }
+
+  /** histogram
+    * @param name - name of the histogram
+    * @return a new histogram registered under the name
+    */
+  public synchronized LatencyHistogram histogram(String name) {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histograms.put(name, histogram);
+    return histogram;
+  }
+
+  /** gauge
+    * @param name - name of the gauge
+    * @param value - computes the value whenever the gauge is read
+    */
+  public synchronized void gauge(String name, LongSupplier value) {
+    gauges.put(name, value);
+  }
+
+  /** gaugeFamily
+    * @param name - name of the gauges
+    * @param values - computes the value for each label whenever the gauges are read
+    */
+  public synchronized void gaugeFamily(String name, Supplier<Map<String, Long>> values) {
+    families.put(name, values);
+  }
+
+  /** scrape
+    * @return every metric as plain text, one "name value" line each
+    */
+  public synchronized String scrape() {
+    StringBuilder text = new StringBuilder();
+
+    for (Map.Entry<String, LongAdder> counter:counters.entrySet()) {
+      text.append(counter.getKey()).append(' ').append(counter.getValue().sum()).append('\n');
+    }
+    for (Map.Entry<String, LongSupplier> gauge:gauges.entrySet()) {
+      text.append(gauge.getKey()).append(' ').append(gauge.getValue().getAsLong()).append('\n');
+    }
+    for (Map.Entry<String, LatencyHistogram> entry:histograms.entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      for (int i = 0; i < QUANTILES.length; i++) {
+        text.append(entry.getKey()).append("{quantile=\"").append(QUANTILE_LABELS[i]).append("\"} ").append(histogram.percentile(QUANTILES[i])).append('\n');
+      }
+      text.append(entry.getKey()).append("_count ").append(histogram.getCount()).append('\n');
+      text.append(entry.getKey()).append("_max ").append(histogram.getMax()).append('\n');
+    }
+    for (Map.Entry<String, Supplier<Map<String, Long>>> family:families.entrySet()) {
+      for (Map.Entry<String, Long> value:family.getValue().get().entrySet()) {
+        text.append(family.getKey()).append('{').append(value.getKey()).append("} ").append(value.getValue()).append('\n');
+      }
+    }
+    return text.toString();
+  }
+
+  /** registerJmx
+    * makes the metrics readable as attributes of the MBean DuberChat:type=ChatServer
+    * @return true if the metrics were registered
+    */
+  public boolean registerJmx() {
+    try {
+      ObjectName name = new ObjectName("DuberChat:type=ChatServer");
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name); //a server started earlier in the same jvm
+      }
+      server.registerMBean(this, name);
+      return true;
+    } catch (JMException e) {
+      return false;
+    }
+  }
+
+  /** serve
+    * starts the plain-text endpoint on the loopback address
+    * @param port - port to listen on
+    */
+  public void serve(int port) throws IOException {
+    HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+    http.createContext("/metrics", exchange -> {
+      byte[] body = scrape().getBytes(WireProtocol.UTF8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    http.start(); //runs on its own thread
+  }
+
+  //***** JMX: counters and gauges are read as they are, histograms as <name>_p50, _p99, _p999, _max, _count
+
+  /** getAttribute
+    * @param attribute - name of the metric
+    * @return current value of the metric
+    */
+  public synchronized Object getAttribute(String attribute) throws AttributeNotFoundException {
+    if (counters.containsKey(attribute)) {
+      return counters.get(attribute).sum();
+    }
+    if (gauges.containsKey(attribute)) {
+      return gauges.get(attribute).getAsLong();
+    }
+
+    int split = attribute.lastIndexOf('_');
+    LatencyHistogram histogram = (split == -1) ? null : histograms.get(attribute.substring(0, split));
+
+    if (histogram != null) {
+      switch (attribute.substring(split+1)) {
+        case "p50": return histogram.percentile(50);
+        case "p99": return histogram.percentile(99);
+        case "p999": return histogram.percentile(99.9);
+        case "max": return histogram.getMax();
+        case "count": return histogram.getCount();
+      }
+    }
+    throw new AttributeNotFoundException(attribute);
+  }
+
+  /** getAttributes
+    * @param attributes - names of the metrics
+    * @return current values of the metrics that exist
+    */
+  public AttributeList getAttributes(String[] attributes) {
+    AttributeList list = new AttributeList();
+
+    for (String attribute:attributes) {
+      try {
+        list.add(new Attribute(attribute, getAttribute(attribute)));
+      } catch (AttributeNotFoundException e) {
+        //left out
+      }
+    }
+    return list;
+  }
+
+  /** getMBeanInfo
+    * @return description of every metric as a read-only long attribute
+    */
+  public synchronized MBeanInfo getMBeanInfo() {
+    ArrayList<MBeanAttributeInfo> attributes = new ArrayList<>();
+
+    for (String name:counters.keySet()) {
+      attributes.add(new MBeanAttributeInfo(name, "long", "counter", true, false, false));
+    }
+    for (String name:gauges.keySet()) {
+      attributes.add(new MBeanAttributeInfo(name, "long", "gauge", true, false, false));
+    }
+    for (String name:histograms.keySet()) {
+      for (String suffix:new String[] {"p50", "p99", "p999", "max", "count"}) {
+        attributes.add(new MBeanAttributeInfo(name+"_"+suffix, "long", "histogram (ns)", true, false, false));
+      }
+    }
+    return new MBeanInfo(getClass().getName(), "Chat server metrics", attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+  }
+
+  /**
+   * metrics are read-only
+   */
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException(attribute.getName()+" is read-only");
+  }
+
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+    throw new MBeanException(new UnsupportedOperationException(actionName));
+  }
+}
@@ -0,0 +1,137 @@
+/*[TimingWheel.java]
+ * A hashed timing wheel used by the server to find connections that have passed their deadline
+ * @version 1.0
+ */
+
+//imports
+import java.util.ArrayList;
+
+/**
+ * TimingWheel
+ * keeps tasks in slots by the tick their deadline falls on, so that advancing the clock
+ * only looks at the tasks that are due instead of every connection
+ *
+ * rescheduling is free: a task that becomes active again only moves its deadline later, and is put in
+ * the right slot when its old slot comes up; one wheel is shared by every connection, and may be scheduled
+ * on from any thread while one thread advances it
+ */
+class TimingWheel {
+
+  /**
+   * Task
+   * something with a deadline that can be kept on the wheel
+   * (the deadline may move later after scheduling; the task is re-slotted when its old slot comes up)
+   */
+  interface Task {
+
+    /**
+     * @return the time in ms at which this task expires
+     */
+    long getDeadline();
+
+    /**
+     * @return true if this task no longer needs to be kept on the wheel
+     */
+    boolean isCancelled();
+
+    /**
+     * called once the deadline has passed
+     */
+    void expire();
+  }
+
+  /**
+   * slots of the wheel; slot i holds the tasks due on ticks where tick % slots.length == i
+   */
+  private ArrayList<Task>[] slots;
+
+  /**
+   * length of one tick in ms
+   */
+  private final long tickMillis;
+
+  /**
+   * last tick that has been processed
+   */
+  private long currentTick;
+
+  /** TimingWheel
+    * Constructor
+    * @param tickMillis - length of one tick in ms
+    * @param numSlots - number of slots on the wheel
+    */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  TimingWheel(long tickMillis, int numSlots) {
+    this.tickMillis = tickMillis;
+    this.slots = new ArrayList[numSlots];
+    for (int i = 0; i < numSlots; i++) {
+      slots[i] = new ArrayList<>();
+    }
+    this.currentTick = System.currentTimeMillis()/tickMillis;
+  }
+
+  /** getTickMillis
+    * @return length of one tick in ms
+    */
+  public long getTickMillis() {
+    return this.tickMillis;
+  }
+
+  /** schedule
+    * puts the task in the slot for its deadline
+    * @param task - task to schedule
+    */
+  public synchronized void schedule(Task task) {
+    long tick = Math.max(task.getDeadline()/tickMillis, currentTick+1); //never schedule into a tick already processed
+    slots[(int)(tick % slots.length)].add(task);
+  }
+
+  /** advance
+    * processes every tick up to the specified time, expiring the tasks that are due
+    * (tasks are expired after the wheel is unlocked, so expiring may take a while or schedule other tasks)
+    * @param now - current time in ms
+    */
+  public void advance(long now) {
+    ArrayList<Task> expired = new ArrayList<>();
+
+    synchronized (this) {
+      collect(now, expired);
+    }
+
+    for (Task task:expired) {
+      task.expire();
+    }
+  }
+
+  /** collect
+    * processes every tick up to the specified time
+    * @param now - current time in ms
+    * @param expired - list the tasks that are due are added to
+    */
+  private void collect(long now, ArrayList<Task> expired) {
+    long nowTick = now/tickMillis;
+
+    while (currentTick < nowTick) {
+      currentTick++;
+      int index = (int)(currentTick % slots.length);
+
+      if (slots[index].isEmpty()) {
+        continue;
+      }
+
+      //swap in an empty slot so tasks can be re-slotted while going through the old one
+      ArrayList<Task> due = slots[index];
+      slots[index] = new ArrayList<>();
+
+      for (Task task:due) {
+        if (task.isCancelled()) {
+          continue; //dropped from the wheel
+        } else if (task.getDeadline() <= now) {
+          expired.add(task);
+        } else {
+          schedule(task); //deadline moved since it was scheduled, or it is more than one turn away
+        }
+      }
+    }
+  }
+}
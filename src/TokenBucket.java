@@ -0,0 +1,54 @@
+/*[TokenBucket.java]
+ * A token bucket limiting how often one client may send one kind of command
+ * @version 1.0
+ */
+
+/**
+ * TokenBucket
+ * holds up to burst tokens and gains rate tokens a second; every command takes one, and when none is left
+ * the command waits until one has been gained (the server stops reading from the client meanwhile)
+ *
+ * only used by the thread reading the client, so it has no locking
+ */
+class TokenBucket {
+
+  /**
+   * tokens gained per ns, and the most tokens the bucket holds
+   */
+  private final double perNano;
+  private final double burst;
+
+  /**
+   * tokens in the bucket as of last (below 0 while commands are waiting for tokens not gained yet)
+   */
+  private double tokens;
+  private long last;
+
+  /** TokenBucket
+    * Constructor - starts full
+    * @param perSecond - tokens gained per second
+    * @param burst - most tokens the bucket holds, i.e. most commands sent at once without waiting
+    */
+  TokenBucket(double perSecond, int burst) {
+    this.perNano = perSecond/1e9;
+    this.burst = Math.max(burst, 1);
+    this.tokens = this.burst;
+    this.last = System.nanoTime();
+  }
+
+  /** reserve
+    * takes a token for one command, borrowing it from the future if the bucket is empty
+    * @param now - current time from System.nanoTime()
+    * @return time in ns the command has to wait for its token, 0 if it can go at once
+    */
+  public long reserve(long now) {
+    tokens = Math.min(burst, tokens+(now-last)*perNano);
+    last = now;
+    tokens--;
+
+    if (tokens >= 0) {
+      return 0;
+    }
+    return (long)Math.ceil(-tokens/perNano);
+  }
+}
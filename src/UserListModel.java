@@ -0,0 +1,243 @@
+/*[UserListModel.java]
+ * The client's list of other users and their statuses, kept sorted, shown through a JList and a JComboBox
+ * @version 1.0
+ */
+
+//imports
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import javax.swing.AbstractListModel;
+import javax.swing.ComboBoxModel;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+
+/**
+ * UserListModel
+ * a list model over the names of the other users, sorted ignoring case; a status change, join or leave is found
+ * with a binary search and told to the list as one changed, added or removed row, and a full list from the server
+ * is compared with the current one so only the rows that differ are changed
+ *
+ * whisperChoices() is the same list with an empty first choice (for messaging the main chat), for the whisper box
+ *
+ * every method is called on the Swing event thread
+ */
+class UserListModel extends AbstractListModel<String> {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * order of the names: ignoring case, then by case so that names differing only in case still have an order
+   */
+  static final Comparator<String> ORDER = (a, b) -> {
+    int compared = a.compareToIgnoreCase(b);
+    return (compared != 0) ? compared : a.compareTo(b);
+  };
+
+  /**
+   * names in order, and the status of each
+   */
+  private ArrayList<String> names = new ArrayList<String>();
+  private HashMap<String, String> statuses = new HashMap<String, String>();
+
+  /**
+   * the list as choices for the whisper box
+   */
+  private final WhisperChoices whisperChoices = new WhisperChoices();
+
+  /** getSize
+    * @return number of users
+    */
+  public int getSize() {
+    return names.size();
+  }
+
+  /** getElementAt
+    * @param index - row of the list
+    * @return name of the user in the row
+    */
+  public String getElementAt(int index) {
+    return names.get(index);
+  }
+
+  /** getStatus
+    * @param name - name of a user
+    * @return status of the user, or null if there is no such user
+    */
+  public String getStatus(String name) {
+    return statuses.get(name);
+  }
+
+  /** whisperChoices
+    * @return the list with an empty first choice, as a model for the whisper box
+    */
+  public ComboBoxModel<String> whisperChoices() {
+    return whisperChoices;
+  }
+
+  /** put
+    * adds a user who joined, or changes the status of one already in the list
+    * @param name - name of the user
+    * @param status - status of the user
+    */
+  public void put(String name, String status) {
+    String old = statuses.put(name, status);
+    int index = Collections.binarySearch(names, name, ORDER);
+
+    if (old == null) {
+      index = -index-1;
+      names.add(index, name);
+      fireIntervalAdded(this, index, index);
+    } else if (!old.equals(status)) {
+      fireContentsChanged(this, index, index);
+    }
+  }
+
+  /** remove
+    * @param name - name of a user who left
+    */
+  public void remove(String name) {
+    if (statuses.remove(name) == null) {
+      return;
+    }
+
+    int index = Collections.binarySearch(names, name, ORDER);
+    names.remove(index);
+    fireIntervalRemoved(this, index, index);
+  }
+
+  /** replaceAll
+    * changes the list to the users given, walking the old and new lists side by side; each run of users who left
+    * or joined next to each other is one event, as is each run of status changes
+    * @param users - every other user and their status
+    */
+  public void replaceAll(Map<String, String> users) {
+    ArrayList<String> sorted = new ArrayList<String>(users.keySet());
+    sorted.sort(ORDER);
+
+    //users who left, removed from the bottom up so the rows above keep their numbers
+    int runEnd = -1;
+    for (int i = names.size()-1; i >= 0; i--) {
+      if (!users.containsKey(names.get(i))) {
+        if (runEnd == -1) {
+          runEnd = i;
+        }
+        statuses.remove(names.remove(i));
+      } else if (runEnd != -1) {
+        fireIntervalRemoved(this, i+1, runEnd);
+        runEnd = -1;
+      }
+    }
+    if (runEnd != -1) {
+      fireIntervalRemoved(this, 0, runEnd);
+    }
+
+    //users who joined, and status changes, from the top down
+    int runStart = -1;
+    int changedStart = -1;
+    for (int i = 0; i < sorted.size(); i++) {
+      String name = sorted.get(i);
+      String status = users.get(name);
+      String old = statuses.put(name, status);
+
+      if (old == null) {
+        names.add(i, name);
+        if (runStart == -1) {
+          runStart = i;
+        }
+      } else if (runStart != -1) {
+        fireIntervalAdded(this, runStart, i-1);
+        runStart = -1;
+      }
+
+      if (old != null && !old.equals(status)) {
+        if (changedStart == -1) {
+          changedStart = i;
+        }
+      } else if (changedStart != -1) {
+        fireContentsChanged(this, changedStart, i-1);
+        changedStart = -1;
+      }
+    }
+    if (runStart != -1) {
+      fireIntervalAdded(this, runStart, sorted.size()-1);
+    }
+    if (changedStart != -1) {
+      fireContentsChanged(this, changedStart, sorted.size()-1);
+    }
+  }
+
+  /** indexOfPrefix
+    * binary search for type-ahead
+    * @param prefix - start of a name, in any case
+    * @return row of the first name starting with the prefix (ignoring case), or -1 if there is none
+    */
+  public int indexOfPrefix(String prefix) {
+    int low = 0;
+    int high = names.size();
+
+    while (low < high) { //first name not before the prefix; names starting with it come right after each other
+      int middle = (low+high) >>> 1;
+
+      if (names.get(middle).compareToIgnoreCase(prefix) < 0) {
+        low = middle+1;
+      } else {
+        high = middle;
+      }
+    }
+
+    if (low < names.size() && names.get(low).regionMatches(true, 0, prefix, 0, prefix.length())) {
+      return low;
+    }
+    return -1;
+  }
+
+  /**
+   * WhisperChoices
+   * the list shifted down a row under an empty choice; passes on the list's events with the rows shifted
+   */
+  private class WhisperChoices extends AbstractListModel<String> implements ComboBoxModel<String>, ListDataListener {
+    private static final long serialVersionUID = 1L;
+    private Object selected = "";
+
+    WhisperChoices() {
+      UserListModel.this.addListDataListener(this);
+    }
+
+    public int getSize() {
+      return names.size()+1;
+    }
+
+    public String getElementAt(int index) {
+      return (index == 0) ? "" : names.get(index-1);
+    }
+
+    public Object getSelectedItem() {
+      return selected;
+    }
+
+    public void setSelectedItem(Object item) {
+      if ((item == null) ? selected != null : !item.equals(selected)) {
+        selected = item;
+        fireContentsChanged(this, -1, -1); //how a combo box is told the selection changed
+      }
+    }
+
+    public void intervalAdded(ListDataEvent event) {
+      fireIntervalAdded(this, event.getIndex0()+1, event.getIndex1()+1);
+    }
+
+    public void intervalRemoved(ListDataEvent event) {
+      fireIntervalRemoved(this, event.getIndex0()+1, event.getIndex1()+1);
+      if (!"".equals(selected) && !statuses.containsKey(selected)) { //the user being whispered to left
+        setSelectedItem("");
+      }
+    }
+
+    public void contentsChanged(ListDataEvent event) {
+      //a status change; the names shown are the same
+    }
+  }
+}
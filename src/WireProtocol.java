@@ -0,0 +1,277 @@
+/*[WireProtocol.java]
+ * Framing shared by the chat server and client
+ * @version 1.0
+ */
+
+//imports
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * WireProtocol
+ * constants and helpers for the two framings of the chat protocol
+ *
+ * text (default): one message per line
+ * binary: after login the client sends <?><binary>; the server answers with the line BINARY_ACK and from then
+ * on both sides send frames of [type: 1 byte][payload length: 4 bytes, big endian][payload: UTF-8]
+ *   client to server: BROADCAST message, WHISPER recipient + '\0' + message, CONTROL status or command
+ *   server to client: TEXT notice, BROADCAST "user: message", WHISPER line, USER_LIST list, PRESENCE change,
+ *                     CONTROL instruction (RESTART)
+ * servers that do not know the binary framing ignore the request, so the client keeps using text
+ *
+ * compression: a client using frames may send the CONTROL message DEFLATE_REQUEST; from then on the server may send
+ * any frame as a COMPRESSED frame whose payload is the zlib-deflated [type: 1 byte][payload: UTF-8] of the frame,
+ * compressed on its own with DICTIONARY preset (so one compressed frame can be shared by every client); small frames,
+ * and frames that would not get smaller, are still sent as they are; servers that do not know it ignore the request
+ */
+class WireProtocol {
+
+  /**
+   * frame types
+   */
+  static final byte TEXT = 'T';
+  static final byte BROADCAST = 'B';
+  static final byte WHISPER = 'W';
+  static final byte USER_LIST = 'L';
+  static final byte PRESENCE = 'P';
+  static final byte CONTROL = 'S';
+  static final byte COMPRESSED = 'Z';
+
+  /**
+   * control message a client sends to ask for binary framing
+   */
+  static final String BINARY_REQUEST = "binary";
+
+  /**
+   * control message a client using frames sends to accept compressed frames
+   */
+  static final String DEFLATE_REQUEST = "deflate";
+
+  /**
+   * line the server sends (as text) right before it starts sending frames
+   */
+  static final String BINARY_ACK = "|#binary";
+
+  /**
+   * start of the notice the server sends when it shuts down, followed by the suggested reconnect delay: "... 4213 ms"
+   */
+  static final String RESTARTING = "Server restarting, reconnect in ";
+
+  /**
+   * start of the instruction the server sends right after that notice, followed by the delay in ms: "|!restart|4213";
+   * a line of its own in the text framing (user names cannot contain a bar), a CONTROL frame in the binary framing;
+   * clients that understand it reconnect after the delay
+   */
+  static final String RESTART = "|!restart|";
+
+  /**
+   * length of a frame header (type and payload length)
+   */
+  static final int HEADER_LENGTH = 5;
+
+  /**
+   * largest payload accepted (constant; 1 MB)
+   */
+  static final int MAX_PAYLOAD = 1 << 20;
+
+  /**
+   * charset of frame payloads
+   */
+  static final Charset UTF8 = StandardCharsets.UTF_8;
+
+  /**
+   * preset dictionary for compressed frames: what user lists, presence changes and notices are made of (the end of
+   * the dictionary is the cheapest to refer to, so the most common strings come last)
+   */
+  static final byte[] DICTIONARY = (" has left # has joined #You have left #--- Recent messages ------ End of recent messages ---"
+                                    +" has entered the chat has left the chat|#binary|+|1|-|1|~|1|=|1|"
+                                    +"|Do Not Disturb/|Idle/|Online/").getBytes(StandardCharsets.UTF_8);
+
+  /**
+   * Frame
+   * a frame read from a stream
+   */
+  static class Frame {
+    byte type;
+    String payload;
+
+    Frame(byte type, String payload) {
+      this.type = type;
+      this.payload = payload;
+    }
+  }
+
+  /** encodeFrame
+    * @param type - frame type
+    * @param payload - frame payload
+    * @return read-only buffer holding the whole frame
+    */
+  static ByteBuffer encodeFrame(byte type, String payload) {
+    byte[] bytes = payload.getBytes(UTF8);
+    ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH+bytes.length);
+    frame.put(type).putInt(bytes.length).put(bytes).flip();
+    return frame.asReadOnlyBuffer();
+  }
+
+  /** writeFrame
+    * writes one frame to a stream (not flushed)
+    * @param out - stream to write to
+    * @param type - frame type
+    * @param payload - frame payload
+    */
+  static void writeFrame(DataOutputStream out, byte type, String payload) throws IOException {
+    byte[] bytes = payload.getBytes(UTF8);
+    out.writeByte(type);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /** compressFrame
+    * @param type - frame type
+    * @param payload - frame payload
+    * @param deflater - deflater to use (reset first)
+    * @return read-only buffer holding the frame compressed as a COMPRESSED frame, or null if that is not smaller
+    */
+  static ByteBuffer compressFrame(byte type, String payload, Deflater deflater) {
+    byte[] bytes = payload.getBytes(UTF8);
+    byte[] input = new byte[1+bytes.length];
+    input[0] = type;
+    System.arraycopy(bytes, 0, input, 1, bytes.length);
+
+    deflater.reset();
+    deflater.setDictionary(DICTIONARY);
+    deflater.setInput(input);
+    deflater.finish();
+
+    byte[] output = new byte[HEADER_LENGTH+input.length]; //anything that does not fit here is not worth sending
+    int length = HEADER_LENGTH;
+    while (!deflater.finished() && length < output.length) {
+      length += deflater.deflate(output, length, output.length-length);
+    }
+
+    if (!deflater.finished() || length >= HEADER_LENGTH+input.length) {
+      return null;
+    }
+    ByteBuffer frame = ByteBuffer.wrap(output, 0, length);
+    frame.put(COMPRESSED).putInt(length-HEADER_LENGTH).rewind();
+    return frame.slice().asReadOnlyBuffer();
+  }
+
+  /** decompressFrame
+    * @param compressed - payload of a COMPRESSED frame
+    * @param inflater - inflater to use (reset first)
+    * @param maxLength - largest payload accepted
+    * @return the frame it holds
+    */
+  static Frame decompressFrame(byte[] compressed, Inflater inflater, int maxLength) throws IOException {
+    inflater.reset();
+    inflater.setInput(compressed);
+    ByteArrayOutputStream output = new ByteArrayOutputStream(compressed.length*4);
+    byte[] chunk = new byte[8192];
+
+    try {
+      while (!inflater.finished()) {
+        int length = inflater.inflate(chunk);
+
+        if (length == 0) {
+          if (inflater.needsDictionary()) {
+            inflater.setDictionary(DICTIONARY);
+          } else if (inflater.needsInput()) {
+            throw new IOException("Compressed frame cut short");
+          }
+        }
+        output.write(chunk, 0, length);
+
+        if (output.size() > maxLength+1) {
+          throw new IOException("Frame too long");
+        }
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Bad compressed frame", e);
+    }
+
+    byte[] frame = output.toByteArray();
+    if (frame.length == 0) {
+      throw new IOException("Empty compressed frame");
+    }
+    return new Frame(frame[0], new String(frame, 1, frame.length-1, UTF8));
+  }
+
+  /** readFrame
+    * reads one frame from a stream
+    * @param in - stream to read from
+    * @param maxLength - largest payload accepted
+    * @return the frame, or null if the stream ended before a new frame
+    */
+  static Frame readFrame(DataInputStream in, int maxLength) throws IOException {
+    return readFrame(in, maxLength, null);
+  }
+
+  /** readFrame
+    * reads one frame from a stream, decompressing it if it is a COMPRESSED frame
+    * @param in - stream to read from
+    * @param maxLength - largest payload accepted
+    * @param inflater - inflater for COMPRESSED frames, or null if they are not expected
+    * @return the frame, or null if the stream ended before a new frame
+    */
+  static Frame readFrame(DataInputStream in, int maxLength, Inflater inflater) throws IOException {
+    int type = in.read();
+
+    if (type == -1) {
+      return null;
+    }
+
+    int length = in.readInt();
+
+    if (length < 0 || length > maxLength) {
+      throw new IOException("Frame too long: "+length);
+    }
+
+    byte[] payload = new byte[length];
+    in.readFully(payload);
+
+    if (type == COMPRESSED && inflater != null) {
+      return decompressFrame(payload, inflater, maxLength);
+    }
+    return new Frame((byte)type, new String(payload, UTF8));
+  }
+
+  /** readLine
+    * reads one line from a stream byte by byte, so nothing past the line is consumed
+    * (lets a reader switch to frames right after a line)
+    * @param in - stream to read from
+    * @param buffer - buffer reused for the bytes of the line
+    * @param charset - charset of the line
+    * @param maxLength - longest line accepted
+    * @return the line without its line break, or null if the stream ended before a new line
+    */
+  static String readLine(InputStream in, ByteArrayOutputStream buffer, Charset charset, int maxLength) throws IOException {
+    buffer.reset();
+    int b = in.read();
+
+    if (b == -1) {
+      return null;
+    }
+
+    while (b != -1 && b != '\n') {
+      if (buffer.size() >= maxLength) {
+        throw new IOException("Line too long");
+      }
+      buffer.write(b);
+      b = in.read();
+    }
+
+    byte[] line = buffer.toByteArray();
+    int length = line.length;
+
+    if (length > 0 && line[length-1] == '\r') {
+      length--;
+    }
+    return new String(line, 0, length, charset);
+  }
+}